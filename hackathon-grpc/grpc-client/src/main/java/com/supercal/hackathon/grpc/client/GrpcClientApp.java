@@ -5,13 +5,14 @@ import com.supercal.hackathon.grpc.client.account.AccountClientCallback;
 import com.supercal.hackathon.grpc.client.account.ClientAccountManager;
 import com.supercal.hackathon.grpc.client.grpc.GrpcChannelManager;
 import com.supercal.hackathon.grpc.client.testdata.BatchRequestGenerator;
-import com.supercal.hackathon.grpc.commons.account.AccountFileUtil;
+import com.supercal.hackathon.grpc.commons.account.AccountSnapshot;
 import com.supercal.hackathon.grpc.commons.monitoring.Monitoring;
 import com.supercal.hackathon.grpc.commons.properties.PropertiesReader;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Properties;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
@@ -66,7 +67,12 @@ public class GrpcClientApp {
             System.out.println("ChannelManager client shut down");
 
             log.info("Writing accounts to disk...");
-            AccountFileUtil.writeToFile(new TreeMap<>(accountManager.getAccounts()) ,"account-client.txt");
+            try {
+                long count = AccountSnapshot.write(Path.of("account-client.snap"), accountManager.getAccounts());
+                log.info("Wrote account snapshot :: accounts={}", count);
+            } catch (IOException e) {
+                log.error("Failed to write account snapshot", e);
+            }
 
             log.info("Shutdown complete");
         }));
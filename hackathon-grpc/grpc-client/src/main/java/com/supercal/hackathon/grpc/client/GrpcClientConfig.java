@@ -72,6 +72,7 @@ public class GrpcClientConfig {
         this.batchSize = Integer.parseInt(properties.getProperty("batch.size", "500"));
 
         // Flow control
+        this.requestInFlight = Integer.parseInt(properties.getProperty("request.inflight", "1"));
         this.tps = Integer.parseInt(properties.getProperty("request.tps.max", "700000"));
 
         // Account
@@ -36,7 +36,7 @@ public class AccountClient {
         // Create one batch processor per partition
         for (int i = 0; i < config.getPartitionsCount(); i++) {
             GrpcConnection connection = grpcChannelManager.getConnection();
-            BatchProcessor batchProcessor = new BatchProcessor(connection, config.getCompression(), callback, tpsBucket);
+            BatchProcessor batchProcessor = new BatchProcessor(connection, config.getCompression(), callback, tpsBucket, config.getRequestInFlight());
             batchProcessors.put(i, batchProcessor);
         }
     }
@@ -31,6 +31,9 @@ public class AccountClientCallback {
 
     public void retry(BalanceUpdateRequestBatch batch) {
         stats.getRetry().addAndGet(batch.getRequestCount());
+
+        // Requests answered before the failure come back again as duplicates
+        batch.getRequestList().forEach(r -> sentMap.put(r.getTransactionId(), r));
     }
 
     public void finished(BalanceUpdateResponseBatch batch) {
@@ -12,97 +12,145 @@ import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.Semaphore;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the batches of one partition over a stream with up to {@code request.inflight} batches awaiting their
+ * completion. The unacknowledged batches are kept in send order by batch id, each completion or batch error settles
+ * the batch it names. An id that is not in the window means the stream is out of step, it is cancelled and the window
+ * resent on a new one.
+ */
 @Slf4j
 public class BatchProcessor implements GrpcConnectionStateListener {
 
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
     private final GrpcConnection connection;
     private final AccountClientCallback callback;
     private final Semaphore semaphore;
     private final Bucket tpsBucket;
     private final String compression;
+    private final int window;
 
-    private Thread thread;
-    private boolean shutDown = false;
+    private volatile boolean shutDown = false;
 
+    // Guarded by unacked, sends happen under the lock so the stream order matches the window order
+    private final LinkedHashMap<Integer, BalanceUpdateRequestBatch> unacked;
     private StreamObserver<BalanceUpdateRequestBatch> streamObserver;
-    private BalanceUpdateRequestBatch inFlightBatch;
 
-    public BatchProcessor(GrpcConnection connection, String compression, AccountClientCallback callback, Bucket tpsBucket) {
+    public BatchProcessor(GrpcConnection connection, String compression, AccountClientCallback callback, Bucket tpsBucket, int window) {
         this.connection = connection;
         this.callback = callback;
         this.tpsBucket = tpsBucket;
         this.compression = compression;
+        this.window = Math.max(1, window);
+        this.semaphore = new Semaphore(this.window);
+        this.unacked = new LinkedHashMap<>(this.window * 2);
         this.streamObserver = toStreamObserver(connection.getChannel(), compression);
-        this.semaphore = new Semaphore(1);
         this.connection.addStateChangeListener(this);
     }
 
     @Override
     public void onReconnect() {
-        streamObserver = toStreamObserver(connection.getChannel(), compression);
+        synchronized (unacked) {
+            streamObserver = toStreamObserver(connection.getChannel(), compression);
+        }
     }
 
     public void addBatch(BalanceUpdateRequestBatch batch) {
         try {
             connection.whenReady();
             semaphore.acquire();
+            tpsBucket.asBlocking().consume(batch.getRequestCount());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             return;
         }
 
-        if(!shutDown) {
-            thread = Thread.startVirtualThread(() -> send(batch));
+        if (shutDown) {
+            semaphore.release();
+            return;
         }
+
+        // Notify callback before sending, the responses may arrive before onNext returns
+        callback.sent(batch);
+
+        // Send batch
+        synchronized (unacked) {
+            unacked.put(batch.getBatchId(), batch);
+            streamObserver.onNext(batch);
+        }
+        log.debug("Batch sent :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
     }
 
     public void shutdown() {
         shutDown = true;
 
+        // Let the window drain
         try {
-            if(thread != null) {
-                thread.join();
+            if (!semaphore.tryAcquire(window, SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Unacknowledged batches at shutdown :: count={}", window - semaphore.availablePermits());
             }
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
         }
 
-        streamObserver.onCompleted();
+        synchronized (unacked) {
+            streamObserver.onCompleted();
+        }
     }
 
-    private void retryBatch() {
-        BalanceUpdateRequestBatch batch = inFlightBatch;
-        inFlightBatch = null;
-
-        try {
-            connection.whenReady();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return;
+    // Settles the unacknowledged batch of the response, null when the window holds no such batch
+    private BalanceUpdateRequestBatch acknowledge(BalanceUpdateResponseBatch response) {
+        synchronized (unacked) {
+            return unacked.remove(response.getBatchId());
         }
+    }
 
-        log.debug("Retrying batch :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
-        callback.retry(batch);
-        thread = Thread.startVirtualThread(() -> send(batch));
+    // A failed batch goes to the back of the window, later batches may already be applied
+    private void retryBatch(BalanceUpdateRequestBatch batch) {
+        Thread.startVirtualThread(() -> {
+            try {
+                connection.whenReady();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            log.debug("Retrying batch :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
+            callback.retry(batch);
+            synchronized (unacked) {
+                unacked.put(batch.getBatchId(), batch);
+                streamObserver.onNext(batch);
+            }
+        });
     }
 
-    private void send(BalanceUpdateRequestBatch batch) {
+    // Resends the whole window in order on a new stream, the server drops transactions it already applied
+    private void resendWindow(StreamObserver<BalanceUpdateRequestBatch> failed) {
         try {
-            tpsBucket.asBlocking().consume(batch.getRequestCount());
+            connection.whenReady();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             return;
         }
 
-        // Send batch
-        inFlightBatch = batch;
-        streamObserver.onNext(batch);
-        log.debug("Batch sent :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
+        synchronized (unacked) {
+            if (streamObserver == failed) {
+                streamObserver = toStreamObserver(connection.getChannel(), compression);
+            }
 
-        // Notify callback
-        callback.sent(batch);
+            List<BalanceUpdateRequestBatch> batches = new ArrayList<>(unacked.values());
+            log.info("Resending unacknowledged batches :: count={}", batches.size());
+            for (BalanceUpdateRequestBatch batch : batches) {
+                callback.retry(batch);
+                streamObserver.onNext(batch);
+            }
+        }
     }
 
     private StreamObserver<BalanceUpdateRequestBatch> toStreamObserver(ManagedChannel channel, String compression) {
@@ -113,44 +161,70 @@ public class BatchProcessor implements GrpcConnectionStateListener {
             stub = stub.withCompression(compression);
         }
 
-        return stub.balanceUpdate(new StreamObserver<>() {
-            @Override
-            public void onNext(BalanceUpdateResponseBatch batch) {
-                if(batch.getBatchCompleted()) {
-                    log.debug("Batch completed :: batchId={}", batch.getBatchId());
-                    inFlightBatch = null;
-                    semaphore.release();
-                } else if (batch.getBatchError()) {
-                    retryBatch();
+        ResponseObserver responseObserver = new ResponseObserver();
+        responseObserver.requests = stub.balanceUpdate(responseObserver);
+        return responseObserver.requests;
+    }
+
+    private class ResponseObserver implements StreamObserver<BalanceUpdateResponseBatch> {
+        private StreamObserver<BalanceUpdateRequestBatch> requests;
+
+        @Override
+        public void onNext(BalanceUpdateResponseBatch batch) {
+            if (batch.getBatchError()) {
+                BalanceUpdateRequestBatch failed = acknowledge(batch);
+                if (failed != null) {
+                    retryBatch(failed);
                 } else {
-                    callback.finished(batch);
+                    protocolError(batch);
                 }
+                return;
             }
 
-            @Override
-            public void onError(Throwable t) {
-                if (t instanceof StatusRuntimeException) {
-                    Status status = ((StatusRuntimeException) t).getStatus();
-
-                    if (status.getCode() == Status.Code.OK) {
-                        return;
-                    }
-
-                    log.error("[gRPC] Server error :: status={}, message={}", status.getCode(), t.getMessage());
-                    synchronized (semaphore) {
-                        if(inFlightBatch != null) {
-                            retryBatch();
-                        }
-                    }
+            // A coalesced completion carries the responses of the batch as well
+            if (batch.getResponseCount() > 0) {
+                callback.finished(batch);
+            }
+
+            if(batch.getBatchCompleted()) {
+                log.debug("Batch completed :: batchId={}", batch.getBatchId());
+                if (acknowledge(batch) != null) {
+                    semaphore.release();
                 } else {
-                    log.error("onError", t);
+                    protocolError(batch);
                 }
             }
+        }
 
-            @Override
-            public void onCompleted() {
-                log.error("should not be called");
+        // Cancelling the stream ends in onError, which resends the window on a new stream
+        private void protocolError(BalanceUpdateResponseBatch batch) {
+            log.error("[gRPC] Acknowledgement of a batch not in the window :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
+            synchronized (unacked) {
+                requests.onError(Status.INTERNAL.withDescription("Unknown batch acknowledged: " + batch.getBatchId()).asRuntimeException());
             }
-        });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (t instanceof StatusRuntimeException) {
+                Status status = ((StatusRuntimeException) t).getStatus();
+
+                if (status.getCode() == Status.Code.OK) {
+                    return;
+                }
+
+                log.error("[gRPC] Server error :: status={}, message={}", status.getCode(), t.getMessage());
+                if (!shutDown) {
+                    Thread.startVirtualThread(() -> resendWindow(requests));
+                }
+            } else {
+                log.error("onError", t);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            log.error("should not be called");
+        }
     }
 }
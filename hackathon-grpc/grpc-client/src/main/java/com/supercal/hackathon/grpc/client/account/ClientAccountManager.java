@@ -17,9 +17,15 @@ public class ClientAccountManager {
     private Map<Integer, Integer> accounts = new ConcurrentHashMap<>();
 
     public void changeBalance(BalanceUpdateRequest request, BalanceUpdateResponse response) {
+        // Credits merged without a read come back without a balance
+        boolean unreported = !response.hasBalance();
+
         // Get or create account
         Integer balance = accounts.get(request.getAccountId());
         if(balance == null) {
+            if(unreported) {
+                return;
+            }
             accounts.put(request.getAccountId(), response.getBalance());
             return;
         }
@@ -30,7 +36,7 @@ public class ClientAccountManager {
             accounts.put(request.getAccountId(), balance);
 
             // Check if the client balance is not matching the server balance
-            if(balance != response.getBalance()) {
+            if(!unreported && balance != response.getBalance()) {
                 log.error("Incorrect balance for account={} :: expected={}, got={}",
                         request.getAccountId(), balance, response.getBalance());
             }
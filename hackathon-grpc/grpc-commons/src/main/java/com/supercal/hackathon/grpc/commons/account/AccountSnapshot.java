@@ -0,0 +1,235 @@
+package com.supercal.hackathon.grpc.commons.account;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binary account snapshot: a 16 byte header (magic, reserved, count) followed by little-endian {@code (accountId, balance)}
+ * int pairs in ascending unsigned id order. Written in parallel ranges, read through memory mapping.
+ */
+public class AccountSnapshot {
+
+    public static final int MAGIC = 0x41435331;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 8;
+
+    // Mapped in segments, a multiple of the entry size so no entry crosses a segment
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private AccountSnapshot(MappedByteBuffer[] segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    public static AccountSnapshot map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+            if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException("Not an account snapshot: " + path);
+            }
+
+            long size = header.getLong(8);
+            long fileSize = channel.size();
+            if (fileSize != HEADER_SIZE + size * ENTRY_SIZE) {
+                throw new IOException("Truncated account snapshot: " + path + ", accounts=" + size + ", bytes=" + fileSize);
+            }
+
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_MASK + 1, fileSize - position));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            return new AccountSnapshot(segments, size);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int accountId(long index) {
+        return getInt(HEADER_SIZE + index * ENTRY_SIZE);
+    }
+
+    public int balance(long index) {
+        return getInt(HEADER_SIZE + index * ENTRY_SIZE + Integer.BYTES);
+    }
+
+    // Index of the first account id not below the given one
+    public long lowerBound(int accountId) {
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (Integer.compareUnsigned(accountId(mid), accountId) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private int getInt(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getInt((int) (offset & SEGMENT_MASK));
+    }
+
+    // Sorts the ids without boxing them again, then writes slices of them in parallel
+    public static long write(Path path, Map<Integer, Integer> accounts) throws IOException {
+        int[] accountIds = new int[accounts.size()];
+        int count = 0;
+        for (Integer accountId : accounts.keySet()) {
+            if (count == accountIds.length) {
+                accountIds = Arrays.copyOf(accountIds, count * 2 + 1);
+            }
+            accountIds[count++] = accountId ^ Integer.MIN_VALUE;
+        }
+        Arrays.parallelSort(accountIds, 0, count);
+
+        int[] sorted = accountIds;
+        int total = count;
+        int ranges = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), total / BUFFER_SIZE + 1));
+        return write(path, ranges, (range, sink) -> {
+            for (int i = (int) ((long) total * range / ranges); i < (long) total * (range + 1) / ranges; i++) {
+                int accountId = sorted[i] ^ Integer.MIN_VALUE;
+                Integer balance = accounts.get(accountId);
+                if (balance != null) {
+                    sink.accept(accountId, balance);
+                }
+            }
+        });
+    }
+
+    // Each range is written to its own part file in parallel, the parts are then appended in range order
+    public static long write(Path path, int ranges, RangeSource source) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        List<Path> parts = new ArrayList<>(ranges);
+        long count = 0;
+
+        try {
+            try (ExecutorService executor = Executors.newFixedThreadPool(Math.min(ranges, Runtime.getRuntime().availableProcessors()))) {
+                List<Future<Long>> futures = new ArrayList<>(ranges);
+                for (int i = 0; i < ranges; i++) {
+                    int range = i;
+                    Path part = Files.createTempFile(dir, path.getFileName() + "-", ".part");
+                    parts.add(part);
+                    futures.add(executor.submit(() -> writePart(part, range, source)));
+                }
+
+                for (Future<Long> future : futures) {
+                    count += future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing account snapshot", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed writing account snapshot", e.getCause());
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(0).putLong(count).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+
+                for (Path part : parts) {
+                    try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                        long position = 0;
+                        while (position < in.size()) {
+                            position += in.transferTo(position, in.size() - position, out);
+                        }
+                    }
+                }
+                out.force(false);
+            }
+
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+
+        return count;
+    }
+
+    private static long writePart(Path part, int range, RangeSource source) throws Exception {
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            PartSink sink = new PartSink(channel);
+            source.export(range, sink);
+            sink.flush();
+            return sink.count;
+        }
+    }
+
+    // Ids of a range ascend unsigned and stay below the ids of the next range
+    @FunctionalInterface
+    public interface RangeSource {
+        void export(int range, Sink sink) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        void accept(int accountId, int balance) throws IOException;
+    }
+
+    private static class PartSink implements Sink {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long count;
+        private int lastAccountId;
+
+        private PartSink(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void accept(int accountId, int balance) throws IOException {
+            if (count > 0 && Integer.compareUnsigned(accountId, lastAccountId) <= 0) {
+                throw new IllegalStateException("Account ids out of order :: previous=" + lastAccountId + ", accountId=" + accountId);
+            }
+
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.putInt(accountId).putInt(balance);
+            lastAccountId = accountId;
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.supercal.hackathon.grpc.commons.account;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two account snapshots, typically the client's expected balances against the server's. Both files are
+ * memory mapped and split into id ranges that are merged in parallel. Accounts only the actual snapshot holds are
+ * reported but do not count as differences, the client only knows the accounts it touched.
+ * <p>
+ * Usage: {@code java -cp grpc-server.jar com.supercal.hackathon.grpc.commons.account.AccountSnapshotDiff account-client.snap account-server.snap [threads]}
+ */
+public class AccountSnapshotDiff {
+
+    private static final int SAMPLES = 20;
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: AccountSnapshotDiff <expected.snap> <actual.snap> [threads]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        AccountSnapshot expected = AccountSnapshot.map(Path.of(args[0]));
+        AccountSnapshot actual = AccountSnapshot.map(Path.of(args[1]));
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Result result = diff(expected, actual, threads);
+        result.samples().forEach(System.out::println);
+        System.out.printf("expected=%d, actual=%d, matched=%d, mismatched=%d, missing=%d, extra=%d, time=%dms%n",
+                expected.size(), actual.size(), result.matched(), result.mismatched(), result.missing(), result.extra(),
+                (System.nanoTime() - start) / 1_000_000);
+
+        System.exit(result.differences() == 0 ? 0 : 1);
+    }
+
+    public static Result diff(AccountSnapshot expected, AccountSnapshot actual, int threads) {
+        // Ranges split the expected ids evenly, the actual bounds are found by binary search
+        int ranges = (int) Math.max(1, Math.min(threads, expected.size()));
+        return IntStream.range(0, ranges).parallel()
+                .mapToObj(range -> diffRange(expected, actual, range, ranges))
+                .reduce(Result::merge)
+                .orElseThrow();
+    }
+
+    private static Result diffRange(AccountSnapshot expected, AccountSnapshot actual, int range, int ranges) {
+        long i = expected.size() * range / ranges;
+        long expectedEnd = expected.size() * (range + 1) / ranges;
+        long j = range == 0 ? 0 : actual.lowerBound(expected.accountId(i));
+        long actualEnd = range == ranges - 1 ? actual.size() : actual.lowerBound(expected.accountId(expectedEnd));
+
+        long matched = 0;
+        long mismatched = 0;
+        long missing = 0;
+        long extra = 0;
+        List<String> samples = new ArrayList<>();
+        while (i < expectedEnd || j < actualEnd) {
+            int compare = i == expectedEnd ? 1 : j == actualEnd ? -1 : Integer.compareUnsigned(expected.accountId(i), actual.accountId(j));
+            if (compare < 0) {
+                missing++;
+                sample(samples, "missing :: accountId=" + expected.accountId(i) + ", expected=" + expected.balance(i));
+                i++;
+            } else if (compare > 0) {
+                extra++;
+                j++;
+            } else {
+                if (expected.balance(i) == actual.balance(j)) {
+                    matched++;
+                } else {
+                    mismatched++;
+                    sample(samples, "mismatch :: accountId=" + expected.accountId(i) + ", expected=" + expected.balance(i) + ", actual=" + actual.balance(j));
+                }
+                i++;
+                j++;
+            }
+        }
+
+        return new Result(matched, mismatched, missing, extra, samples);
+    }
+
+    private static void sample(List<String> samples, String difference) {
+        if (samples.size() < SAMPLES) {
+            samples.add(difference);
+        }
+    }
+
+    public record Result(long matched, long mismatched, long missing, long extra, List<String> samples) {
+
+        public long differences() {
+            return mismatched + missing;
+        }
+
+        private Result merge(Result other) {
+            List<String> merged = new ArrayList<>(samples);
+            merged.addAll(other.samples.subList(0, Math.min(other.samples.size(), Math.max(0, SAMPLES - samples.size()))));
+            return new Result(matched + other.matched, mismatched + other.mismatched, missing + other.missing, extra + other.extra, merged);
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.supercal.hackathon.grpc.server;
 
-import com.supercal.hackathon.grpc.commons.account.AccountFileUtil;
 import com.supercal.hackathon.grpc.commons.properties.PropertiesReader;
+import com.supercal.hackathon.grpc.proto.AccountServiceGrpc;
 import com.supercal.hackathon.grpc.server.account.AccountManager;
 import com.supercal.hackathon.grpc.server.account.AccountService;
 import com.supercal.hackathon.grpc.server.account.inmemory.InMemoryAccountManager;
+import com.supercal.hackathon.grpc.server.account.journal.JournalAccountManager;
+import com.supercal.hackathon.grpc.server.account.mmap.MmapAccountManager;
 import com.supercal.hackathon.grpc.server.account.redis.RedisAccountManager;
 import com.supercal.hackathon.grpc.server.account.speedb.SpeedbAccountManager;
+import io.grpc.Metadata;
 import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
 import io.grpc.netty.NettyServerBuilder;
 import io.netty.channel.kqueue.KQueue;
 import io.netty.channel.kqueue.KQueueEventLoopGroup;
@@ -18,9 +23,9 @@ import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.util.Map;
+import java.nio.file.Path;
 import java.util.Properties;
-import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 @Slf4j
@@ -28,6 +33,8 @@ public class GrpcServerApp {
 
     private final GrpcServerConfig config;
     private AccountManager accountManager;
+    private AccountService accountService;
+    private PinnedThreadMonitor pinnedThreadMonitor;
 
     public static void main(String... args) throws Exception {
         new GrpcServerApp();
@@ -38,6 +45,11 @@ public class GrpcServerApp {
         Properties properties = PropertiesReader.readProperties("config.properties");
         this.config = new GrpcServerConfig(properties);
 
+        // Diagnostic, report virtual threads blocking while pinned to their carrier
+        if (config.isPinnedMonitor()) {
+            pinnedThreadMonitor = new PinnedThreadMonitor(config.getPinnedThresholdMs(), config.getPinnedReportSeconds());
+        }
+
         // Init accounts
         init();
 
@@ -50,6 +62,8 @@ public class GrpcServerApp {
             case "memory" -> new InMemoryAccountManager(config);
             case "redis" -> new RedisAccountManager(config);
             case "speedb" -> new SpeedbAccountManager(config);
+            case "mmap" -> new MmapAccountManager(config);
+            case "journal" -> new JournalAccountManager(config);
             default -> throw new RuntimeException("Unsupported account-manager=" + config.getAccountManager());
         };
 
@@ -58,10 +72,11 @@ public class GrpcServerApp {
 
     private void startServer() throws InterruptedException, IOException {
         // Build server
+        accountService = new AccountService(config, accountManager);
         NettyServerBuilder builder = NettyServerBuilder.forPort(config.getPort())
                 .maxInboundMessageSize(config.getMaxInboundMessageSize() * 1024 * 1024)
                 .flowControlWindow(config.getFlowControlWindow() * 1024 * 1024)
-                .addService(new AccountService(accountManager));
+                .addService(accountService);
 
         // Executor
         if(config.isThreadsVirtual()) {
@@ -70,6 +85,17 @@ public class GrpcServerApp {
             builder.executor(Executors.newFixedThreadPool(config.getThreads()));
         }
 
+        // Partition workers, balance streams skip the executor and run on the event loop
+        if (accountService.isWorkerMode()) {
+            String balanceUpdate = AccountServiceGrpc.getBalanceUpdateMethod().getFullMethodName();
+            builder.callExecutor(new ServerCallExecutorSupplier() {
+                @Override
+                public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+                    return balanceUpdate.equals(call.getMethodDescriptor().getFullMethodName()) ? Runnable::run : null;
+                }
+            });
+        }
+
         // IO_uring
         if (config.isIoUring()) {
             if(IOUring.isAvailable()) {
@@ -100,12 +126,20 @@ public class GrpcServerApp {
             // Shutdown grpc server
             server.shutdown();
 
-            // Shutdown grpc server
-            Map<Integer, Integer> accountMap = accountManager.getAccounts();
-            AccountFileUtil.writeToFile(new TreeMap<>(accountMap) ,"account-server.txt");
+            // Snapshot accounts for verification
+            try {
+                accountManager.exportSnapshot(Path.of("account-server.snap"));
+            } catch (Exception e) {
+                log.error("Failed to export account snapshot", e);
+            }
 
             // Shutdown account-manager
+            accountService.shutdown();
             accountManager.shutdown();
+
+            if (pinnedThreadMonitor != null) {
+                pinnedThreadMonitor.close();
+            }
         }));
 
         server.awaitTermination();
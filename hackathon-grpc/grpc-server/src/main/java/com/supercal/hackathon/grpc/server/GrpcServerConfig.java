@@ -16,6 +16,15 @@ public class GrpcServerConfig {
     public final int maxInboundMessageSize;
     public final int flowControlWindow;
     public final boolean ioUring;
+    public final int partitionQueueDepth;
+    public final boolean responseCoalesce;
+    public final int workers;
+    public final int storageThreads;
+    public final int storageQueueSize;
+    public final int storageStatsSeconds;
+    public final boolean pinnedMonitor;
+    public final long pinnedThresholdMs;
+    public final int pinnedReportSeconds;
 
     // Account
     public final int accounts;
@@ -25,11 +34,53 @@ public class GrpcServerConfig {
     // Speedb
     public final int shards;
     public final boolean wal;
+    public final String durability;
+    public final int groupCommitMax;
+    public final int pipelineDepth;
+    public final boolean cacheAuthoritative;
+    public final long cacheCapacity;
+    public final int shardQueueSize;
+    public final boolean mergeCredits;
+    public final boolean txnFilter;
+    public final long txnFilterCapacity;
+    public final int txnFilterBitsPerKey;
+    public final long memoryBudgetMb;
+    public final double memoryWriteBufferRatio;
+    public final int provisionChunkSize;
+    public final String profile;
+    public final String profileAccounts;
+    public final String profileTxns;
+    public final long compactionRateMb;
+    public final double backpressureStart;
+    public final long backpressureMaxDelayMs;
+    public final long backpressureStopWaitMs;
+    public final long backpressurePollMs;
+    public final int routeBuckets;
+    public final long reshardRateMb;
+
+    // Transaction
+    public final int txnWindowSeconds;
+    public final int txnWindowBucketSeconds;
+
+    // Mmap
+    public final String mmapDir;
+    public final boolean mmapLogSync;
+    public final int mmapCheckpointSeconds;
+
+    // Journal
+    public final String journalDir;
+    public final int journalSegmentMb;
+    public final boolean journalSync;
+    public final int journalSnapshotSeconds;
 
     // Redis
     public final String redisHost;
     public final int redisPort;
     public final int redisConnections;
+    public final String redisNodes;
+    public final int redisSlots;
+    public final int redisScriptBatchSize;
+    public final int redisTxnTtlSeconds;
 
     // Error
     public final int simulateError;
@@ -44,6 +95,15 @@ public class GrpcServerConfig {
         this.maxInboundMessageSize = Integer.parseInt(properties.getProperty("server.max.inbound.message.size", "1"));
         this.flowControlWindow = Integer.parseInt(properties.getProperty("server.flow.control.window", "4"));
         this.ioUring = Boolean.parseBoolean(properties.getProperty("server.iouring", "true"));
+        this.partitionQueueDepth = Integer.parseInt(properties.getProperty("server.partition.queue.depth", "8"));
+        this.responseCoalesce = Boolean.parseBoolean(properties.getProperty("server.response.coalesce", "false"));
+        this.workers = Integer.parseInt(properties.getProperty("server.workers", "0"));
+        this.storageThreads = Integer.parseInt(properties.getProperty("server.storage.threads", "0"));
+        this.storageQueueSize = Integer.parseInt(properties.getProperty("server.storage.queue.size", "64"));
+        this.storageStatsSeconds = Integer.parseInt(properties.getProperty("server.storage.stats.seconds", "0"));
+        this.pinnedMonitor = Boolean.parseBoolean(properties.getProperty("server.pinned.monitor", "false"));
+        this.pinnedThresholdMs = Long.parseLong(properties.getProperty("server.pinned.threshold.ms", "20"));
+        this.pinnedReportSeconds = Integer.parseInt(properties.getProperty("server.pinned.report.seconds", "60"));
 
         // Account
         this.accounts = Integer.parseInt(properties.getProperty("account.count", "100000"));
@@ -53,11 +113,53 @@ public class GrpcServerConfig {
         // Speedb
         this.shards = Integer.parseInt(properties.getProperty("speedb.shards", "2"));
         this.wal = Boolean.parseBoolean(properties.getProperty("speedb.wal", "true"));
+        this.durability = properties.getProperty("speedb.durability", wal ? "wal-async" : "none");
+        this.groupCommitMax = Integer.parseInt(properties.getProperty("speedb.group.commit.max", "16"));
+        this.pipelineDepth = Integer.parseInt(properties.getProperty("speedb.pipeline.depth", "2"));
+        this.cacheAuthoritative = Boolean.parseBoolean(properties.getProperty("speedb.cache.authoritative", "false"));
+        this.cacheCapacity = Long.parseLong(properties.getProperty("speedb.cache.capacity", "0"));
+        this.shardQueueSize = Integer.parseInt(properties.getProperty("speedb.shard.queue.size", "64"));
+        this.mergeCredits = Boolean.parseBoolean(properties.getProperty("speedb.merge.credits", "true"));
+        this.txnFilter = Boolean.parseBoolean(properties.getProperty("speedb.txn.filter", "true"));
+        this.txnFilterCapacity = Long.parseLong(properties.getProperty("speedb.txn.filter.capacity", "20000000"));
+        this.txnFilterBitsPerKey = Integer.parseInt(properties.getProperty("speedb.txn.filter.bits.per.key", "10"));
+        this.memoryBudgetMb = Long.parseLong(properties.getProperty("speedb.memory.budget.mb", "2048"));
+        this.memoryWriteBufferRatio = Double.parseDouble(properties.getProperty("speedb.memory.write.buffer.ratio", "0.5"));
+        this.provisionChunkSize = Integer.parseInt(properties.getProperty("speedb.provision.chunk.size", "65536"));
+        this.profile = properties.getProperty("speedb.profile", "throughput");
+        this.profileAccounts = properties.getProperty("speedb.profile.accounts", profile);
+        this.profileTxns = properties.getProperty("speedb.profile.txns", profile);
+        this.compactionRateMb = Long.parseLong(properties.getProperty("speedb.compaction.rate.mb", "256"));
+        this.backpressureStart = Double.parseDouble(properties.getProperty("speedb.backpressure.start", "0.5"));
+        this.backpressureMaxDelayMs = Long.parseLong(properties.getProperty("speedb.backpressure.max.delay.ms", "20"));
+        this.backpressureStopWaitMs = Long.parseLong(properties.getProperty("speedb.backpressure.stop.wait.ms", "1000"));
+        this.backpressurePollMs = Long.parseLong(properties.getProperty("speedb.backpressure.poll.ms", "100"));
+        this.routeBuckets = Integer.parseInt(properties.getProperty("speedb.route.buckets", "4096"));
+        this.reshardRateMb = Long.parseLong(properties.getProperty("speedb.reshard.rate.mb", "32"));
+
+        // Transaction
+        this.txnWindowSeconds = Integer.parseInt(properties.getProperty("txn.window.seconds", "0"));
+        this.txnWindowBucketSeconds = Integer.parseInt(properties.getProperty("txn.window.bucket.seconds", "60"));
+
+        // Mmap
+        this.mmapDir = properties.getProperty("mmap.dir", "mmap");
+        this.mmapLogSync = Boolean.parseBoolean(properties.getProperty("mmap.log.sync", "false"));
+        this.mmapCheckpointSeconds = Integer.parseInt(properties.getProperty("mmap.checkpoint.seconds", "60"));
+
+        // Journal
+        this.journalDir = properties.getProperty("journal.dir", "journal");
+        this.journalSegmentMb = Integer.parseInt(properties.getProperty("journal.segment.mb", "256"));
+        this.journalSync = Boolean.parseBoolean(properties.getProperty("journal.sync", "true"));
+        this.journalSnapshotSeconds = Integer.parseInt(properties.getProperty("journal.snapshot.seconds", "60"));
 
         // Redis
         this.redisHost = properties.getProperty("redis.host", "localhost");
         this.redisPort = Integer.parseInt(properties.getProperty("redis.port", "6379"));
         this.redisConnections = Integer.parseInt(properties.getProperty("redis.connections", "100"));
+        this.redisNodes = properties.getProperty("redis.nodes", "");
+        this.redisSlots = Integer.parseInt(properties.getProperty("redis.slots", "16"));
+        this.redisScriptBatchSize = Integer.parseInt(properties.getProperty("redis.script.batch.size", "500"));
+        this.redisTxnTtlSeconds = Integer.parseInt(properties.getProperty("redis.txn.ttl.seconds", "3600"));
 
         // Error
         this.simulateError = Integer.parseInt(properties.getProperty("simulate.error.percent", "0"));
@@ -0,0 +1,101 @@
+package com.supercal.hackathon.grpc.server;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Diagnostic mode that streams JFR {@code jdk.VirtualThreadPinned} events, raised when a virtual thread blocks while
+ * pinned to its carrier, and reports them grouped by the first application frame of the stack.
+ */
+@Slf4j
+public class PinnedThreadMonitor implements AutoCloseable {
+
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+    private static final String APPLICATION_PACKAGE = "com.supercal.";
+    private static final int TOP_SITES = 10;
+
+    private final RecordingStream stream;
+    private final Map<String, Site> sites;
+
+    public PinnedThreadMonitor(long thresholdMs, int reportSeconds) {
+        this.sites = new ConcurrentHashMap<>();
+        this.stream = new RecordingStream();
+        stream.enable(EVENT).withThreshold(Duration.ofMillis(thresholdMs)).withStackTrace();
+        stream.onEvent(EVENT, this::record);
+        if (reportSeconds > 0) {
+            stream.onFlush(new Runnable() {
+                private long next = System.nanoTime() + Duration.ofSeconds(reportSeconds).toNanos();
+
+                @Override
+                public void run() {
+                    if (System.nanoTime() - next >= 0) {
+                        next = System.nanoTime() + Duration.ofSeconds(reportSeconds).toNanos();
+                        report();
+                    }
+                }
+            });
+        }
+        stream.startAsync();
+
+        log.info("Pinned thread monitor :: threshold={}ms, report={}s", thresholdMs, reportSeconds);
+    }
+
+    private void record(RecordedEvent event) {
+        Site site = sites.computeIfAbsent(callSite(event.getStackTrace()), s -> new Site());
+        site.count.increment();
+        site.nanos.add(event.getDuration().toNanos());
+    }
+
+    // First application frame, else the first frame outside the JDK, else the top frame
+    private static String callSite(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "unknown";
+        }
+
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        RecordedFrame site = frames.stream()
+                .filter(frame -> typeName(frame).startsWith(APPLICATION_PACKAGE))
+                .findFirst()
+                .or(() -> frames.stream().filter(frame -> !typeName(frame).startsWith("java.") && !typeName(frame).startsWith("jdk.")).findFirst())
+                .orElse(frames.getFirst());
+        return typeName(site) + "." + site.getMethod().getName() + ":" + site.getLineNumber();
+    }
+
+    private static String typeName(RecordedFrame frame) {
+        return frame.getMethod().getType().getName();
+    }
+
+    public void report() {
+        if (sites.isEmpty()) {
+            log.info("Pinned virtual threads :: none");
+            return;
+        }
+
+        sites.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Site> entry) -> entry.getValue().nanos.sum()).reversed())
+                .limit(TOP_SITES)
+                .forEach(entry -> log.info("Pinned virtual threads :: site={}, count={}, pinned={}ms", entry.getKey(),
+                        entry.getValue().count.sum(), Duration.ofNanos(entry.getValue().nanos.sum()).toMillis()));
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+        report();
+    }
+
+    private static class Site {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+}
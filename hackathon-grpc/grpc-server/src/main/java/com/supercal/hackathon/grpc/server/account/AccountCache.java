@@ -1,10 +1,11 @@
 package com.supercal.hackathon.grpc.server.account;
 
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
 import java.util.Map;
 
-public class AccountCache {
+public class AccountCache implements BalanceCache {
 
     public static final int defaultReturnValue = Integer.MAX_VALUE;
     private final Int2IntOpenHashMap cache;
@@ -14,10 +15,12 @@ public class AccountCache {
         cache.defaultReturnValue(defaultReturnValue);
     }
 
+    @Override
     public int get(int accountId) {
         return cache.get(accountId);
     }
 
+    @Override
     public void put(int accountId, int balance) {
         cache.put(accountId, balance);
     }
@@ -26,10 +29,35 @@ public class AccountCache {
         cache.putAll(accounts);
     }
 
+    @Override
+    public void putAll(Int2IntMap accounts) {
+        cache.putAll(accounts);
+    }
+
+    @Override
+    public void remove(int accountId) {
+        cache.remove(accountId);
+    }
+
     public boolean containsKey(int accountId) {
         return cache.containsKey(accountId);
     }
 
+    @Override
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public boolean isBounded() {
+        return false;
+    }
+
+    @Override
+    public String getStats() {
+        return String.format("entries=%d", cache.size());
+    }
+
     public Int2IntOpenHashMap getMap() {
         return cache;
     }
@@ -1,10 +1,15 @@
 package com.supercal.hackathon.grpc.server.account;
 
+import com.supercal.hackathon.grpc.commons.account.AccountSnapshot;
+import com.supercal.hackathon.grpc.proto.AccountProvisionRequest;
+import com.supercal.hackathon.grpc.proto.AccountProvisionResponse;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
 import io.grpc.stub.StreamObserver;
 
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface AccountManager {
 
@@ -12,7 +17,30 @@ public interface AccountManager {
 
     void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) throws Exception;
 
+    // Pipelined managers return once the batch is queued and send its responses after the previous batch completed
+    default CompletableFuture<Void> changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer,
+                                                  CompletableFuture<Void> previous) throws Exception {
+        changeBalance(batch, observer);
+        return previous;
+    }
+
+    // Pipelined managers queue a batch instead of writing it and only wait when storage pushes back, so their batches may
+    // run on the shared partition workers
+    default boolean isPipelined() {
+        return false;
+    }
+
     void createAccounts(int numAccounts, int balance) throws Exception;
 
+    // Creates missing accounts with the amount as balance and tops up existing ones
+    default AccountProvisionResponse provisionAccounts(AccountProvisionRequest request) throws Exception {
+        throw new UnsupportedOperationException("Account provisioning not supported");
+    }
+
+    // Writes a point-in-time view of all balances, engines that can take one without pausing writes override it
+    default long exportSnapshot(Path path) throws Exception {
+        return AccountSnapshot.write(path, getAccounts());
+    }
+
     default void shutdown() { }
 }
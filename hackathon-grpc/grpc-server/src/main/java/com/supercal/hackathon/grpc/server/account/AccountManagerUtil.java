@@ -1,8 +1,11 @@
 package com.supercal.hackathon.grpc.server.account;
 
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponse;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
 import com.supercal.hackathon.grpc.proto.OperationStatus;
+import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -31,6 +34,17 @@ public class AccountManagerUtil {
                 (bytes[3] & 0xFF);
     }
 
+    public static long bytesToLong(byte[] bytes) {
+        return (bytes[0] & 0xFFL) << 56 |
+                (bytes[1] & 0xFFL) << 48 |
+                (bytes[2] & 0xFFL) << 40 |
+                (bytes[3] & 0xFFL) << 32 |
+                (bytes[4] & 0xFFL) << 24 |
+                (bytes[5] & 0xFFL) << 16 |
+                (bytes[6] & 0xFFL) << 8  |
+                (bytes[7] & 0xFFL);
+    }
+
     public static BalanceUpdateResponse toResponse(BalanceUpdateRequest request, OperationStatus status, Integer newBalance) {
         BalanceUpdateResponse.Builder builder = responseBuilder.get().clear();
         builder.setTransactionId(request.getTransactionId()).setStatus(status);
@@ -45,4 +59,16 @@ public class AccountManagerUtil {
     public static BalanceUpdateResponse toResponse(BalanceUpdateRequest request, OperationStatus status) {
         return toResponse(request, status, null);
     }
+
+    // Sends the responses and completes the batch, in one message when coalesced
+    public static void respond(StreamObserver<BalanceUpdateResponseBatch> observer, BalanceUpdateRequestBatch batch,
+                               BalanceUpdateResponseBatch.Builder responses, boolean coalesce) {
+        if (coalesce) {
+            observer.onNext(responses.setBatchCompleted(true).setBatchId(batch.getBatchId()).setPartition(batch.getPartition()).build());
+            return;
+        }
+
+        observer.onNext(responses.build());
+        observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchCompleted(true).setBatchId(batch.getBatchId()).build());
+    }
 }
@@ -1,30 +1,76 @@
 package com.supercal.hackathon.grpc.server.account;
 
+import com.supercal.hackathon.grpc.proto.AccountProvisionRequest;
+import com.supercal.hackathon.grpc.proto.AccountProvisionResponse;
 import com.supercal.hackathon.grpc.proto.AccountServiceGrpc;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
 
     private final AccountManager accountManager;
     private final Map<Integer, PartitionProcessor> partitionProcessors;
+    private final int queueDepth;
+    private final PartitionWorkers workers;
+    private final StorageExecutor storage;
 
-    public AccountService(AccountManager accountManager) {
+    public AccountService(GrpcServerConfig config, AccountManager accountManager) {
         this.accountManager = accountManager;
         this.partitionProcessors = new ConcurrentHashMap<>();
+        this.queueDepth = config.getPartitionQueueDepth();
+        // A shared worker must not block, so only managers that hand batches off run on the workers
+        this.workers = config.getWorkers() > 0 && accountManager.isPipelined() ? new PartitionWorkers(config.getWorkers()) : null;
+        if (config.getWorkers() > 0 && workers == null) {
+            log.warn("Partition workers need a pipelined account manager, partitions keep their own threads :: manager={}",
+                    accountManager.getClass().getSimpleName());
+        }
+        this.storage = config.getStorageThreads() > 0
+                ? new StorageExecutor(config.getStorageThreads(), config.getStorageQueueSize(), config.getStorageStatsSeconds())
+                : null;
     }
 
     @Override
     public StreamObserver<BalanceUpdateRequestBatch> balanceUpdate(StreamObserver<BalanceUpdateResponseBatch> responseObserver) {
+        // Batches are requested as earlier ones complete, so a slow partition stops reading and HTTP/2 flow control
+        // pushes back on the client instead of batches piling up on the heap
+        ServerCallStreamObserver<BalanceUpdateResponseBatch> call = (ServerCallStreamObserver<BalanceUpdateResponseBatch>) responseObserver;
+        StreamObserver<BalanceUpdateResponseBatch> observer;
+        Runnable completed;
+        if (queueDepth > 0) {
+            call.disableAutoRequest();
+            call.request(queueDepth);
+            ReadyObserver ready = new ReadyObserver(call);
+            observer = ready;
+            completed = () -> ready.run(() -> {
+                if (!call.isCancelled()) {
+                    call.request(1);
+                }
+            });
+        } else {
+            observer = responseObserver;
+            completed = () -> { };
+        }
+
         return new StreamObserver<>() {
 
             private int partition;
@@ -33,11 +79,12 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
             @Override
             public void onNext(BalanceUpdateRequestBatch batch) {
                 if (partitionProcessor == null) {
-                    this.partitionProcessor = partitionProcessors.computeIfAbsent(batch.getPartition(), p -> new PartitionProcessor());
+                    this.partitionProcessor = partitionProcessors.computeIfAbsent(batch.getPartition(),
+                            p -> workers != null ? new PartitionProcessor(workers.forPartition(p)) : new PartitionProcessor());
                     this.partition = batch.getPartition();
                 }
 
-                partitionProcessor.addBatch(batch, responseObserver);
+                partitionProcessor.addBatch(batch, observer, completed);
             }
 
             @Override
@@ -47,15 +94,88 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
 
             @Override
             public void onCompleted() {
-                partitionProcessor.shutdown();
+                if (partitionProcessor == null) {
+                    observer.onCompleted();
+                    return;
+                }
+
+                partitionProcessor.shutdown().whenComplete((v, e) -> {
+                    observer.onCompleted();
+                    partitionProcessors.remove(partition);
+                });
+            }
+        };
+    }
+
+    @Override
+    public StreamObserver<AccountProvisionRequest> provisionAccounts(StreamObserver<AccountProvisionResponse> responseObserver) {
+        return new StreamObserver<>() {
+
+            private long created;
+            private long toppedUp;
+            private boolean failed;
+
+            @Override
+            public void onNext(AccountProvisionRequest request) {
+                if (failed) {
+                    return;
+                }
+
+                // Blocking here holds back the next message of this stream only
+                try {
+                    AccountProvisionResponse response = storage != null
+                            ? storage.call(() -> accountManager.provisionAccounts(request))
+                            : accountManager.provisionAccounts(request);
+                    created += response.getCreated();
+                    toppedUp += response.getToppedUp();
+                } catch (UnsupportedOperationException e) {
+                    failed = true;
+                    responseObserver.onError(Status.UNIMPLEMENTED.withDescription(e.getMessage()).asRuntimeException());
+                } catch (IllegalArgumentException e) {
+                    failed = true;
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                } catch (Exception e) {
+                    log.error("Exception provisioning accounts", e);
+                    failed = true;
+                    responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warn("Provisioning stream failed :: created={}, toppedUp={}", created, toppedUp, t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+
+                log.info("Provisioned accounts :: created={}, toppedUp={}", created, toppedUp);
+                responseObserver.onNext(AccountProvisionResponse.newBuilder().setCreated(created).setToppedUp(toppedUp).build());
                 responseObserver.onCompleted();
-                partitionProcessors.remove(partition);
             }
         };
     }
 
+    public boolean isWorkerMode() {
+        return workers != null;
+    }
+
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (storage != null) {
+            storage.shutdown();
+        }
+    }
+
     public class PartitionProcessor {
-        private final ThreadPoolExecutor executor;
+        private final Executor executor;
+        private final boolean shared;
+        private CompletableFuture<Void> previous;
 
         public PartitionProcessor() {
             this.executor = new ThreadPoolExecutor(
@@ -65,30 +185,135 @@ public class AccountService extends AccountServiceGrpc.AccountServiceImplBase {
                     TimeUnit.SECONDS,
                     new LinkedBlockingQueue<>(),
                     Thread.ofVirtual().factory());
+            this.shared = false;
+            this.previous = CompletableFuture.completedFuture(null);
+        }
+
+        // Runs on the worker that owns the partition, batches are handed over without another queue
+        public PartitionProcessor(Executor worker) {
+            this.executor = worker;
+            this.shared = true;
+            this.previous = CompletableFuture.completedFuture(null);
         }
 
-        public void addBatch(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
+        // Completed runs once the responses of the batch are sent
+        public void addBatch(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer, Runnable completed) {
             executor.execute(() -> {
                 try {
-                    accountManager.changeBalance(batch, observer);
+                    // Responses of this batch follow the responses of the previous one, a virtual thread parks while a
+                    // storage thread makes the blocking call, a pipelined manager only queues the batch on the worker
+                    CompletableFuture<Void> last = previous;
+                    CompletableFuture<Void> next = storage != null && !shared
+                            ? storage.call(() -> accountManager.changeBalance(batch, observer, last))
+                            : accountManager.changeBalance(batch, observer, last);
+                    previous = next.exceptionally(e -> {
+                        log.error("Exception completing batch", e);
+                        observer.onError(e);
+                        return null;
+                    });
+                    previous.thenRun(completed);
                 } catch (Exception e) {
                     log.error("Exception adding batch", e);
                     observer.onError(e);
+                    completed.run();
                 }
             });
         }
 
-        public void shutdown() {
-            executor.shutdown();
+        // Completes once the responses of queued batches are sent
+        public CompletableFuture<Void> shutdown() {
+            // Called on the event loop in worker mode, so wait without blocking, behind the batches queued on the worker
+            if (shared) {
+                return CompletableFuture.supplyAsync(() -> previous, executor)
+                        .thenCompose(last -> last)
+                        .orTimeout(30, TimeUnit.SECONDS)
+                        .exceptionally(e -> {
+                            log.error("Exception waiting for pending batches", e);
+                            return null;
+                        });
+            }
+
+            ExecutorService own = (ExecutorService) executor;
+            own.shutdown();
 
             try {
-                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
-                    executor.shutdownNow();
+                if (!own.awaitTermination(30, TimeUnit.SECONDS)) {
+                    own.shutdownNow();
                 }
+
+                // Wait for the responses of queued batches
+                previous.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException ex) {
+                log.error("Exception waiting for pending batches", ex);
             } catch (InterruptedException ex) {
-                executor.shutdownNow();
+                own.shutdownNow();
                 Thread.currentThread().interrupt();
             }
+
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // Queues responses while the transport is not ready and sends them from the ready handler, so no thread waits on a
+    // slow reader. Actions queued in between run once the responses before them are sent
+    private static class ReadyObserver implements StreamObserver<BalanceUpdateResponseBatch> {
+        private final ServerCallStreamObserver<BalanceUpdateResponseBatch> call;
+        private final Queue<Object> pending;
+        private final AtomicInteger wip;
+        private volatile boolean cancelled;
+
+        private ReadyObserver(ServerCallStreamObserver<BalanceUpdateResponseBatch> call) {
+            this.call = call;
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.wip = new AtomicInteger();
+            call.setOnReadyHandler(this::drain);
+            call.setOnCancelHandler(() -> {
+                cancelled = true;
+                drain();
+            });
+        }
+
+        @Override
+        public void onNext(BalanceUpdateResponseBatch response) {
+            pending.add(response);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            run(() -> call.onError(t));
+        }
+
+        @Override
+        public void onCompleted() {
+            run(call::onCompleted);
+        }
+
+        private void run(Runnable action) {
+            pending.add(action);
+            drain();
+        }
+
+        // One thread drains at a time, entries queued meanwhile are picked up before it leaves
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            do {
+                Object next;
+                while ((next = pending.peek()) != null && (next instanceof Runnable || cancelled || call.isReady())) {
+                    pending.poll();
+                    if (next instanceof Runnable action) {
+                        action.run();
+                    } else {
+                        // Dropped by the call once cancelled
+                        call.onNext((BalanceUpdateResponseBatch) next);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
         }
     }
 }
@@ -0,0 +1,24 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+
+/**
+ * Account balance cache, {@link #get} returns {@link AccountCache#defaultReturnValue} for accounts it does not hold.
+ */
+public interface BalanceCache {
+
+    int get(int accountId);
+
+    void put(int accountId, int balance);
+
+    void putAll(Int2IntMap accounts);
+
+    void remove(int accountId);
+
+    int size();
+
+    // Bounded caches may evict, so a miss does not mean the account is missing
+    boolean isBounded();
+
+    String getStats();
+}
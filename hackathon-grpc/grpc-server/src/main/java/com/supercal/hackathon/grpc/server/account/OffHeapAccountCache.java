@@ -0,0 +1,186 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded off-heap balance cache. Entries live in 8-way sets of one cache line each (8 keys, then 8 values)
+ * inside direct buffer slabs, and every set evicts with its own CLOCK hand. Heap usage does not grow with the
+ * capacity. Not thread-safe.
+ */
+public class OffHeapAccountCache implements BalanceCache {
+
+    private static final int WAYS = 8;
+    private static final int SET_BYTES = WAYS * Integer.BYTES * 2;
+    private static final int VALUES_OFFSET = WAYS * Integer.BYTES;
+
+    // 2^24 sets of 64 bytes make a 1GB slab
+    private static final int SLAB_SHIFT = 24;
+    private static final int SLAB_MASK = (1 << SLAB_SHIFT) - 1;
+
+    // Per set metadata: occupied ways, referenced ways and the clock hand
+    private static final int META_BYTES = 3;
+
+    private final long sets;
+    private final ByteBuffer[] slabs;
+    private final ByteBuffer meta;
+    private int size;
+
+    // Stats
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public OffHeapAccountCache(long capacity) {
+        this.sets = Math.max(1, (capacity + WAYS - 1) / WAYS);
+        if (sets * META_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache capacity too large: " + capacity);
+        }
+
+        int slabCount = (int) ((sets + SLAB_MASK) >>> SLAB_SHIFT);
+        this.slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            long slabSets = Math.min(1L << SLAB_SHIFT, sets - ((long) i << SLAB_SHIFT));
+            slabs[i] = ByteBuffer.allocateDirect((int) (slabSets * SET_BYTES)).order(ByteOrder.nativeOrder());
+        }
+        this.meta = ByteBuffer.allocateDirect((int) (sets * META_BYTES));
+    }
+
+    @Override
+    public int get(int accountId) {
+        long set = setOf(accountId);
+        ByteBuffer slab = slabs[(int) (set >>> SLAB_SHIFT)];
+        int base = (int) (set & SLAB_MASK) * SET_BYTES;
+        int metaBase = (int) (set * META_BYTES);
+
+        int way = find(slab, base, meta.get(metaBase), accountId);
+        if (way < 0) {
+            misses++;
+            return AccountCache.defaultReturnValue;
+        }
+
+        hits++;
+        meta.put(metaBase + 1, (byte) (meta.get(metaBase + 1) | (1 << way)));
+        return slab.getInt(base + VALUES_OFFSET + way * Integer.BYTES);
+    }
+
+    @Override
+    public void put(int accountId, int balance) {
+        long set = setOf(accountId);
+        ByteBuffer slab = slabs[(int) (set >>> SLAB_SHIFT)];
+        int base = (int) (set & SLAB_MASK) * SET_BYTES;
+        int metaBase = (int) (set * META_BYTES);
+        int occupied = meta.get(metaBase) & 0xFF;
+
+        // Update in place, an update does not count as a reference
+        int way = find(slab, base, occupied, accountId);
+        if (way < 0) {
+            way = (occupied != 0xFF) ? Integer.numberOfTrailingZeros(~occupied) : evict(metaBase);
+            if (((occupied >>> way) & 1) == 0) {
+                meta.put(metaBase, (byte) (occupied | (1 << way)));
+                size++;
+            }
+            slab.putInt(base + way * Integer.BYTES, accountId);
+        }
+
+        slab.putInt(base + VALUES_OFFSET + way * Integer.BYTES, balance);
+    }
+
+    @Override
+    public void putAll(Int2IntMap accounts) {
+        for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(accounts)) {
+            put(entry.getIntKey(), entry.getIntValue());
+        }
+    }
+
+    @Override
+    public void remove(int accountId) {
+        long set = setOf(accountId);
+        ByteBuffer slab = slabs[(int) (set >>> SLAB_SHIFT)];
+        int base = (int) (set & SLAB_MASK) * SET_BYTES;
+        int metaBase = (int) (set * META_BYTES);
+
+        int way = find(slab, base, meta.get(metaBase), accountId);
+        if (way >= 0) {
+            meta.put(metaBase, (byte) (meta.get(metaBase) & ~(1 << way)));
+            meta.put(metaBase + 1, (byte) (meta.get(metaBase + 1) & ~(1 << way)));
+            size--;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isBounded() {
+        return true;
+    }
+
+    public long getCapacity() {
+        return sets * WAYS;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String getStats() {
+        long lookups = hits + misses;
+        return String.format("entries=%d, capacity=%d, memory=%dMB, hitRate=%.4f, hits=%d, misses=%d, evictions=%d",
+                size, getCapacity(), sets * (SET_BYTES + META_BYTES) / (1024 * 1024),
+                lookups == 0 ? 0 : (double) hits / lookups, hits, misses, evictions);
+    }
+
+    private int find(ByteBuffer slab, int base, int occupied, int accountId) {
+        for (int way = 0; way < WAYS; way++) {
+            if (((occupied >>> way) & 1) != 0 && slab.getInt(base + way * Integer.BYTES) == accountId) {
+                return way;
+            }
+        }
+
+        return -1;
+    }
+
+    // Second chance: referenced ways lose their bit, the first unreferenced way is the victim
+    private int evict(int metaBase) {
+        int referenced = meta.get(metaBase + 1) & 0xFF;
+        int hand = meta.get(metaBase + 2);
+
+        while (((referenced >>> hand) & 1) != 0) {
+            referenced &= ~(1 << hand);
+            hand = (hand + 1) & (WAYS - 1);
+        }
+
+        meta.put(metaBase + 1, (byte) referenced);
+        meta.put(metaBase + 2, (byte) ((hand + 1) & (WAYS - 1)));
+        evictions++;
+
+        return hand;
+    }
+
+    private long setOf(int accountId) {
+        // Murmur3 fmix32, sequential account ids must spread over all sets
+        int h = accountId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return ((h & 0xFFFFFFFFL) * sets) >>> 32;
+    }
+}
@@ -0,0 +1,37 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fixed set of platform worker threads, sized to the cores. A partition is hashed onto one worker and all its
+ * batches run there, so the partition's state stays on one core and a batch goes from the event loop to storage
+ * with a single hand-off.
+ */
+@Slf4j
+public class PartitionWorkers {
+
+    private final ExecutorService[] workers;
+
+    public PartitionWorkers(int count) {
+        this.workers = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("partition-worker-" + i).daemon().factory());
+        }
+
+        log.info("Partition workers :: count={}", count);
+    }
+
+    public Executor forPartition(int partition) {
+        return workers[Math.floorMod(partition, workers.length)];
+    }
+
+    public void shutdown() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of platform threads for blocking storage calls. Virtual threads hand their call over and park until it
+ * returns, so JNI and mmap work that pins a thread holds one of these threads instead of a carrier shared with the
+ * gRPC handlers. A full queue parks the caller, which backs up the partition like a slow storage call would.
+ */
+@Slf4j
+public class StorageExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService statsExecutor;
+
+    // Stats
+    private final LongAdder calls;
+    private final LongAdder queueFullWaits;
+    private final LongAdder waitNanos;
+    private final LongAdder runNanos;
+    private final LongAccumulator maxQueued;
+
+    public StorageExecutor(int threads, int queueSize, int statsSeconds) {
+        this.calls = new LongAdder();
+        this.queueFullWaits = new LongAdder();
+        this.waitNanos = new LongAdder();
+        this.runNanos = new LongAdder();
+        this.maxQueued = new LongAccumulator(Math::max, 0);
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                Thread.ofPlatform().name("storage-", 0).daemon().factory(),
+                (task, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Storage executor shut down");
+                    }
+
+                    // Park the caller until the queue has room
+                    try {
+                        queueFullWaits.increment();
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        ((FutureTask<?>) task).cancel(false);
+                    }
+                });
+
+        this.statsExecutor = statsSeconds > 0 ? Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory()) : null;
+        if (statsExecutor != null) {
+            statsExecutor.scheduleAtFixedRate(() -> log.info("Storage executor :: {}", getStats()), statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        }
+
+        log.info("Storage executor :: threads={}, queueSize={}", threads, queueSize);
+    }
+
+    // Runs the call on a storage thread and waits for it, exceptions of the call are rethrown as they are
+    public <T> T call(Callable<T> callable) throws Exception {
+        long submitted = System.nanoTime();
+        FutureTask<T> task = new FutureTask<>(() -> {
+            long started = System.nanoTime();
+            waitNanos.add(started - submitted);
+            try {
+                return callable.call();
+            } finally {
+                runNanos.add(System.nanoTime() - started);
+            }
+        });
+
+        calls.increment();
+        executor.execute(task);
+        maxQueued.accumulate(executor.getQueue().size());
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            throw e;
+        }
+    }
+
+    public String getStats() {
+        long count = Math.max(1, calls.sum());
+        return String.format("calls=%d, active=%d, queued=%d, maxQueued=%d, queueFull=%d, avgWait=%dus, avgRun=%dus",
+                calls.sum(), executor.getActiveCount(), executor.getQueue().size(), maxQueued.get(), queueFullWaits.sum(),
+                TimeUnit.NANOSECONDS.toMicros(waitNanos.sum() / count), TimeUnit.NANOSECONDS.toMicros(runNanos.sum() / count));
+    }
+
+    public void shutdown() {
+        if (statsExecutor != null) {
+            statsExecutor.shutdown();
+        }
+        executor.shutdown();
+        log.info("Storage executor :: {}", getStats());
+    }
+}
@@ -0,0 +1,105 @@
+package com.supercal.hackathon.grpc.server.account;
+
+/**
+ * Blocked Bloom filter over transaction ids. All probes for a key land in one 512-bit block (a single cache line),
+ * so a lookup costs one memory access. Not thread-safe.
+ */
+public class TxnBloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_LONGS = BLOCK_BITS / Long.SIZE;
+
+    private final long[] bits;
+    private final long blocks;
+    private final int hashes;
+
+    // Stats
+    private long count;
+    private long lookups;
+    private long positives;
+    private long falsePositives;
+
+    public TxnBloomFilter(long expectedInsertions, int bitsPerKey) {
+        long totalBits = Math.max(BLOCK_BITS, expectedInsertions * bitsPerKey);
+        this.blocks = Math.min(Integer.MAX_VALUE / BLOCK_LONGS, (totalBits + BLOCK_BITS - 1) / BLOCK_BITS);
+        this.bits = new long[(int) (blocks * BLOCK_LONGS)];
+        this.hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    public void put(long txnId) {
+        long hash = mix(txnId);
+        int offset = blockOffset(hash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) >>> 23;
+            bits[offset + (bit >>> 6)] |= 1L << bit;
+        }
+
+        count++;
+    }
+
+    public boolean mightContain(long txnId) {
+        lookups++;
+
+        long hash = mix(txnId);
+        int offset = blockOffset(hash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) >>> 23;
+            if ((bits[offset + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        positives++;
+        return true;
+    }
+
+    // Called with the number of "maybe" answers that storage did not confirm
+    public void recordFalsePositives(int n) {
+        falsePositives += n;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMemoryBytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+
+    // Standard Bloom estimate for the current fill, blocking makes the real rate slightly higher
+    public double getExpectedFpp() {
+        double bitsPerKey = (double) bits.length * Long.SIZE / Math.max(1, count);
+        return Math.pow(1 - Math.exp(-hashes / bitsPerKey), hashes);
+    }
+
+    public double getObservedFpp() {
+        long negatives = lookups - positives + falsePositives;
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+
+    public String getStats() {
+        return String.format("count=%d, memory=%dMB, hashes=%d, expectedFpp=%.5f, observedFpp=%.5f, lookups=%d, positives=%d",
+                count, getMemoryBytes() / (1024 * 1024), hashes, getExpectedFpp(), getObservedFpp(), lookups, positives);
+    }
+
+    private int blockOffset(long hash) {
+        // Multiply-shift on the block count so the probe bits (low word) stay independent of the block choice
+        return (int) Math.unsignedMultiplyHigh(mix(hash), blocks) * BLOCK_LONGS;
+    }
+
+    // Murmur3 fmix64, TSIDs are time ordered and need a full avalanche
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
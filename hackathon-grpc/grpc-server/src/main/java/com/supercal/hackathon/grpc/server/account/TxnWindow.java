@@ -0,0 +1,55 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import lombok.Getter;
+
+/**
+ * Dedupe window over TSID transaction ids. A TSID holds 42 bits of milliseconds since 2020-01-01T00:00:00Z
+ * followed by 22 node/counter bits, so ids sort by time and a time bucket maps to a contiguous id range.
+ */
+@Getter
+public class TxnWindow {
+
+    public static final long TSID_EPOCH = 1577836800000L;
+    private static final int TSID_RANDOM_BITS = 22;
+
+    private final long windowMillis;
+    private final long bucketMillis;
+
+    public TxnWindow(long windowMillis, long bucketMillis) {
+        this.windowMillis = windowMillis;
+        this.bucketMillis = Math.max(1, Math.min(bucketMillis, windowMillis));
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    public boolean isExpired(long txnId, long now) {
+        return isEnabled() && toMillis(txnId) < now - windowMillis;
+    }
+
+    public long getBucket(long txnId) {
+        return isEnabled() ? toMillis(txnId) / bucketMillis : 0;
+    }
+
+    // Oldest bucket that still holds transactions inside the window, everything before it can be dropped
+    public long getCutoffBucket(long now) {
+        return (now - windowMillis) / bucketMillis;
+    }
+
+    public long getBucketStartTxnId(long bucket) {
+        return toTxnId(bucket * bucketMillis);
+    }
+
+    public int getBuckets() {
+        return isEnabled() ? (int) ((windowMillis + bucketMillis - 1) / bucketMillis) + 1 : 1;
+    }
+
+    public static long toMillis(long txnId) {
+        return (txnId >>> TSID_RANDOM_BITS) + TSID_EPOCH;
+    }
+
+    public static long toTxnId(long millis) {
+        return Math.max(0, millis - TSID_EPOCH) << TSID_RANDOM_BITS;
+    }
+}
@@ -0,0 +1,78 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * One {@link TxnBloomFilter} per {@link TxnWindow} bucket, so expired buckets are dropped instead of
+ * saturating a single filter. With the window disabled everything goes to bucket 0. Not thread-safe.
+ */
+public class WindowedTxnFilter {
+
+    private final TxnWindow window;
+    private final long bucketCapacity;
+    private final int bitsPerKey;
+    private final Long2ObjectOpenHashMap<TxnBloomFilter> filters;
+
+    // Stats
+    private long lookups;
+    private long positives;
+    private long falsePositives;
+
+    public WindowedTxnFilter(TxnWindow window, long capacity, int bitsPerKey) {
+        this.window = window;
+        this.bucketCapacity = Math.max(1, capacity / window.getBuckets());
+        this.bitsPerKey = bitsPerKey;
+        this.filters = new Long2ObjectOpenHashMap<>();
+    }
+
+    public void put(long txnId) {
+        long bucket = window.getBucket(txnId);
+        TxnBloomFilter filter = filters.get(bucket);
+
+        if (filter == null) {
+            filter = new TxnBloomFilter(bucketCapacity, bitsPerKey);
+            filters.put(bucket, filter);
+        }
+
+        filter.put(txnId);
+    }
+
+    public boolean mightContain(long txnId) {
+        lookups++;
+
+        TxnBloomFilter filter = filters.get(window.getBucket(txnId));
+        if (filter == null || !filter.mightContain(txnId)) {
+            return false;
+        }
+
+        positives++;
+        return true;
+    }
+
+    public void recordFalsePositives(int n) {
+        falsePositives += n;
+    }
+
+    // Drop the filters of all buckets older than the cutoff
+    public void expire(long cutoffBucket) {
+        filters.long2ObjectEntrySet().removeIf(entry -> entry.getLongKey() < cutoffBucket);
+    }
+
+    public String getStats() {
+        long count = 0;
+        long memory = 0;
+        double expectedFpp = 0;
+
+        for (TxnBloomFilter filter : filters.values()) {
+            count += filter.getCount();
+            memory += filter.getMemoryBytes();
+            expectedFpp = Math.max(expectedFpp, filter.getExpectedFpp());
+        }
+
+        long negatives = lookups - positives + falsePositives;
+        double observedFpp = negatives == 0 ? 0 : (double) falsePositives / negatives;
+
+        return String.format("buckets=%d, count=%d, memory=%dMB, expectedFpp=%.5f, observedFpp=%.5f, lookups=%d, positives=%d",
+                filters.size(), count, memory / (1024 * 1024), expectedFpp, observedFpp, lookups, positives);
+    }
+}
@@ -0,0 +1,79 @@
+package com.supercal.hackathon.grpc.server.account;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Exact set of transaction ids, one hash set per {@link TxnWindow} bucket so expired buckets are dropped whole.
+ * With the window disabled everything goes to bucket 0. Not thread-safe.
+ */
+public class WindowedTxnSet {
+
+    private final TxnWindow window;
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> buckets;
+    private long size;
+
+    // Most transactions fall into the current bucket
+    private long lastBucket;
+    private LongOpenHashSet lastSet;
+
+    public WindowedTxnSet(TxnWindow window) {
+        this.window = window;
+        this.buckets = new Long2ObjectOpenHashMap<>();
+        this.lastBucket = Long.MIN_VALUE;
+    }
+
+    public boolean contains(long txnId) {
+        LongOpenHashSet set = getSet(window.getBucket(txnId), false);
+        return set != null && set.contains(txnId);
+    }
+
+    // Returns false when the transaction was already present
+    public boolean add(long txnId) {
+        if (!getSet(window.getBucket(txnId), true).add(txnId)) {
+            return false;
+        }
+
+        size++;
+        return true;
+    }
+
+    // Drop all buckets older than the cutoff
+    public void expire(long cutoffBucket) {
+        buckets.long2ObjectEntrySet().removeIf(entry -> {
+            if (entry.getLongKey() >= cutoffBucket) {
+                return false;
+            }
+
+            size -= entry.getValue().size();
+            return true;
+        });
+
+        lastBucket = Long.MIN_VALUE;
+        lastSet = null;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private LongOpenHashSet getSet(long bucket, boolean create) {
+        if (bucket == lastBucket) {
+            return lastSet;
+        }
+
+        LongOpenHashSet set = buckets.get(bucket);
+        if (set == null) {
+            if (!create) {
+                return null;
+            }
+
+            set = new LongOpenHashSet();
+            buckets.put(bucket, set);
+        }
+
+        lastBucket = bucket;
+        lastSet = set;
+        return set;
+    }
+}
@@ -5,78 +5,165 @@ import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponse;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
-import com.supercal.hackathon.grpc.proto.OperationStatus;
 import com.supercal.hackathon.grpc.server.GrpcServerConfig;
-import com.supercal.hackathon.grpc.server.account.AccountCache;
 import com.supercal.hackathon.grpc.server.account.AccountManager;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
+import com.supercal.hackathon.grpc.server.account.WindowedTxnSet;
 import io.grpc.stub.StreamObserver;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import lombok.Data;
 
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
-@Data
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_FAILED;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INVALID_AMOUNT;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_SUCCESS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_TRANSACTION_EXPIRED;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.respond;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toResponse;
+
+/**
+ * Balances in a dense array indexed by account id and updated with CAS, so partitions apply batches concurrently.
+ * Transaction ids are deduped in striped windowed sets, a stripe lock only serializes requests of the same stripe.
+ */
 public class InMemoryAccountManager implements AccountManager {
 
-    private AccountCache accounts;
+    private static final VarHandle BALANCES = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int TXN_STRIPES = 64;
+
+    private final TxnWindow txnWindow;
+    private final TxnStripe[] txnStripes;
+    private final boolean responseCoalesce;
+
+    private volatile int[] balances;
 
     public InMemoryAccountManager(GrpcServerConfig grpcServerConfig) {
-        this.accounts = new AccountCache(grpcServerConfig.getAccounts());
+        this.txnWindow = new TxnWindow(grpcServerConfig.getTxnWindowSeconds() * 1000L, grpcServerConfig.getTxnWindowBucketSeconds() * 1000L);
+        this.txnStripes = new TxnStripe[TXN_STRIPES];
+        for (int i = 0; i < TXN_STRIPES; i++) {
+            txnStripes[i] = new TxnStripe(txnWindow);
+        }
+        this.balances = new int[0];
+        this.responseCoalesce = grpcServerConfig.isResponseCoalesce();
     }
 
     @Override
     public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
-        List<BalanceUpdateResponse> responses = batch.getRequestList().stream().map(this::changeBalance).toList();
-        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder().addAllResponse(responses);
+        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+        int[] accounts = balances;
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < batch.getRequestCount(); i++) {
+            builder.addResponse(changeBalance(accounts, batch.getRequest(i), now));
+        }
 
-        observer.onNext(builder.build());
-        observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchCompleted(true).setBatchId(batch.getBatchId()).build());
+        respond(observer, batch, builder, responseCoalesce);
     }
 
-    protected BalanceUpdateResponse changeBalance(BalanceUpdateRequest request) {
-        int balance = accounts.get(request.getAccountId());
+    protected BalanceUpdateResponse changeBalance(int[] accounts, BalanceUpdateRequest request, long now) {
+        long txnId = request.getTransactionId();
+        int accountId = request.getAccountId();
 
-        if (balance == AccountCache.defaultReturnValue) {
-            return BalanceUpdateResponse.newBuilder()
-                    .setTransactionId(request.getTransactionId())
-                    .setStatus(OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND)
-                    .build();
+        if (txnWindow.isExpired(txnId, now)) {
+            return toResponse(request, OPERATION_STATUS_TRANSACTION_EXPIRED);
         }
 
-        if (request.getAmount() <= 0) {
-            return BalanceUpdateResponse.newBuilder()
-                    .setTransactionId(request.getTransactionId())
-                    .setBalance(balance)
-                    .setStatus(OperationStatus.OPERATION_STATUS_INVALID_AMOUNT)
-                    .build();
+        if (Integer.compareUnsigned(accountId, accounts.length) >= 0) {
+            return toResponse(request, OPERATION_STATUS_ACCOUNT_NOT_FOUND);
         }
 
-        if (balance < request.getAmount()) {
-            return BalanceUpdateResponse.newBuilder()
-                    .setTransactionId(request.getTransactionId())
-                    .setBalance(balance)
-                    .setStatus(OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS)
-                    .build();
+        if (request.getAmount() <= 0) {
+            return toResponse(request, OPERATION_STATUS_INVALID_AMOUNT, (int) BALANCES.getVolatile(accounts, accountId));
         }
 
-        int newBalance = request.getAction() == Action.ACTION_DEBIT ? -request.getAmount() : request.getAmount();
-        accounts.put(request.getAccountId(), newBalance);
+        // Check, apply and record under the stripe lock, so a retried transaction waits for the first attempt
+        TxnStripe stripe = txnStripes[HashCommon.mix((int) (txnId ^ (txnId >>> 32))) & (TXN_STRIPES - 1)];
+        stripe.lock.lock();
+        try {
+            if (stripe.contains(txnId)) {
+                return toResponse(request, OPERATION_STATUS_DUPLICATE_TRANSACTION);
+            }
+
+            int balance = (int) BALANCES.getVolatile(accounts, accountId);
+            int newBalance;
+            while (true) {
+                if (request.getAction() == Action.ACTION_CREDIT) {
+                    newBalance = balance + request.getAmount();
+                } else if (request.getAction() == Action.ACTION_DEBIT) {
+                    if (balance < request.getAmount()) {
+                        return toResponse(request, OPERATION_STATUS_INSUFFICIENT_FUNDS, balance);
+                    }
+                    newBalance = balance - request.getAmount();
+                } else {
+                    return toResponse(request, OPERATION_STATUS_FAILED, balance);
+                }
 
-        return BalanceUpdateResponse.newBuilder()
-                .setTransactionId(request.getTransactionId())
-                .setBalance(newBalance)
-                .setStatus(OperationStatus.OPERATION_STATUS_SUCCESS)
-                .build();
+                // Other stripes may update the same account concurrently
+                int witness = (int) BALANCES.compareAndExchange(accounts, accountId, balance, newBalance);
+                if (witness == balance) {
+                    break;
+                }
+                balance = witness;
+            }
+
+            stripe.add(txnId, now);
+            return toResponse(request, OPERATION_STATUS_SUCCESS, newBalance);
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
+    @Override
     public void createAccounts(int accountNumber, int balance) {
-        for (int i = 0; i < accountNumber; i++) {
-            accounts.put(i, balance);
-        }
+        int[] accounts = new int[accountNumber];
+        Arrays.fill(accounts, balance);
+        this.balances = accounts;
     }
 
     @Override
     public Int2IntOpenHashMap getAccounts() {
-        return accounts.getMap();
+        int[] accounts = balances;
+        Int2IntOpenHashMap accountMap = new Int2IntOpenHashMap(accounts.length);
+        for (int accountId = 0; accountId < accounts.length; accountId++) {
+            accountMap.put(accountId, (int) BALANCES.getVolatile(accounts, accountId));
+        }
+
+        return accountMap;
+    }
+
+    private static class TxnStripe {
+        private final ReentrantLock lock;
+        private final TxnWindow window;
+        private final WindowedTxnSet txns;
+        private long cutoffBucket;
+
+        private TxnStripe(TxnWindow window) {
+            this.lock = new ReentrantLock();
+            this.window = window;
+            this.txns = new WindowedTxnSet(window);
+        }
+
+        private boolean contains(long txnId) {
+            return txns.contains(txnId);
+        }
+
+        private void add(long txnId, long now) {
+            txns.add(txnId);
+
+            // Drop buckets the window has passed, at most once per bucket
+            if (window.isEnabled()) {
+                long cutoff = window.getCutoffBucket(now);
+                if (cutoff > cutoffBucket) {
+                    txns.expire(cutoff);
+                    cutoffBucket = cutoff;
+                }
+            }
+        }
     }
 }
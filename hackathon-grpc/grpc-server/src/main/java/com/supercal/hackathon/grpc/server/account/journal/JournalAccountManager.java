@@ -0,0 +1,609 @@
+package com.supercal.hackathon.grpc.server.account.journal;
+
+import com.supercal.hackathon.grpc.proto.Action;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import com.supercal.hackathon.grpc.server.account.AccountCache;
+import com.supercal.hackathon.grpc.server.account.AccountManager;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
+import com.supercal.hackathon.grpc.server.account.WindowedTxnSet;
+import io.grpc.stub.StreamObserver;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_FAILED;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_SUCCESS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_TRANSACTION_EXPIRED;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.respond;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toResponse;
+
+/**
+ * Balances and the dedupe set in memory, every applied batch appended to a preallocated, memory-mapped journal.
+ * A flusher thread forces the journal for all batches written since its last pass (group fsync), including the
+ * segments rolled away meanwhile. The next segment is preallocated in the background, so a roll only swaps it in.
+ * Snapshots start a new segment, so older segments can be deleted once the dedupe window has passed them.
+ */
+@Slf4j
+public class JournalAccountManager implements AccountManager {
+
+    // txnId, accountId, delta, balance
+    private static final int ENTRY_BYTES = Long.BYTES + Integer.BYTES * 3;
+
+    private final GrpcServerConfig config;
+    private final Path dir;
+    private final int segmentSize;
+    private final TxnWindow txnWindow;
+    private final WindowedTxnSet txns;
+    private final CRC32C crc;
+    private final ReentrantLock lock;
+    private final Condition written;
+    private final Condition flushed;
+    private final Thread flusher;
+    private final ExecutorService preallocator;
+    private final ScheduledExecutorService snapshotExecutor;
+
+    // Highest transaction id of every retained segment, segments are kept for dedupe until the window passed them
+    private final Long2LongOpenHashMap segmentMaxTxnIds;
+
+    private Int2IntOpenHashMap balances;
+    private JournalSegment segment;
+    private CompletableFuture<JournalSegment> spare;
+    private final ArrayDeque<Retired> retired;
+    private ByteBuffer record;
+    private long writtenSeq;
+    private long flushedSeq;
+    private JournalSegment flushSegment;
+    private int flushPosition;
+    private volatile boolean running;
+
+    public JournalAccountManager(GrpcServerConfig config) throws IOException {
+        this.config = config;
+        this.dir = Path.of(config.getJournalDir());
+        // Segments are mapped as one buffer
+        if (config.getJournalSegmentMb() < 1 || config.getJournalSegmentMb() > JournalSegment.MAX_SIZE_MB) {
+            throw new IllegalArgumentException("Unsupported journal.segment.mb=" + config.getJournalSegmentMb()
+                    + ", expected 1 to " + JournalSegment.MAX_SIZE_MB);
+        }
+        this.segmentSize = config.getJournalSegmentMb() << 20;
+        this.txnWindow = new TxnWindow(config.getTxnWindowSeconds() * 1000L, config.getTxnWindowBucketSeconds() * 1000L);
+        this.txns = new WindowedTxnSet(txnWindow);
+        this.crc = new CRC32C();
+        this.lock = new ReentrantLock();
+        this.written = lock.newCondition();
+        this.flushed = lock.newCondition();
+        this.segmentMaxTxnIds = new Long2LongOpenHashMap();
+        this.record = ByteBuffer.allocate(64 * 1024);
+        this.retired = new ArrayDeque<>();
+        this.preallocator = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("journal-preallocate").daemon().factory());
+
+        Files.createDirectories(dir);
+        if (!JournalSnapshot.list(dir).isEmpty()) {
+            recover();
+        }
+
+        this.running = true;
+        this.flusher = Thread.ofPlatform().name("journal-flusher").start(this::runFlusher);
+        this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+        if (config.getJournalSnapshotSeconds() > 0) {
+            snapshotExecutor.scheduleWithFixedDelay(this::snapshot, config.getJournalSnapshotSeconds(),
+                    config.getJournalSnapshotSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
+        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+        Int2IntOpenHashMap updates = new Int2IntOpenHashMap();
+        LongOpenHashSet batchTxnIds = new LongOpenHashSet();
+        long now = System.currentTimeMillis();
+        long seq;
+
+        // The lock covers the dedupe set, the balances and the journal append, the fsync is waited for outside it
+        lock.lock();
+        try {
+            int count = 0;
+            record.clear().position(Integer.BYTES);
+
+            for (BalanceUpdateRequest request : batch.getRequestList()) {
+                long txnId = request.getTransactionId();
+                int accountId = request.getAccountId();
+
+                if (txnWindow.isExpired(txnId, now)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_TRANSACTION_EXPIRED));
+                    continue;
+                }
+
+                if (batchTxnIds.contains(txnId) || txns.contains(txnId)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_DUPLICATE_TRANSACTION));
+                    continue;
+                }
+
+                // Earlier requests of this batch are not applied yet
+                int balance = updates.containsKey(accountId) ? updates.get(accountId) : balances.get(accountId);
+                if (balance == AccountCache.defaultReturnValue) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_ACCOUNT_NOT_FOUND));
+                    continue;
+                }
+
+                int delta;
+                if (request.getAction() == Action.ACTION_CREDIT) {
+                    delta = request.getAmount();
+                } else if (request.getAction() == Action.ACTION_DEBIT) {
+                    if (balance < request.getAmount()) {
+                        builder.addResponse(toResponse(request, OPERATION_STATUS_INSUFFICIENT_FUNDS, balance));
+                        continue;
+                    }
+                    delta = -request.getAmount();
+                } else {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_FAILED, balance));
+                    continue;
+                }
+
+                balance += delta;
+                updates.put(accountId, balance);
+                batchTxnIds.add(txnId);
+                addEntry(txnId, accountId, delta, balance);
+                count++;
+                builder.addResponse(toResponse(request, OPERATION_STATUS_SUCCESS, balance));
+            }
+
+            // Journal first, nothing is applied when the append fails
+            if (count > 0) {
+                append(count);
+                balances.putAll(updates);
+                batchTxnIds.forEach(txns::add);
+            }
+            seq = writtenSeq;
+
+            if (config.isJournalSync()) {
+                while (flushedSeq < seq) {
+                    flushed.awaitUninterruptibly();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to journal batch :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId(), e);
+            observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchError(true).setPartition(batch.getPartition()).setBatchId(batch.getBatchId()).build());
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        respond(observer, batch, builder, config.isResponseCoalesce());
+    }
+
+    @Override
+    public Int2IntOpenHashMap getAccounts() {
+        lock.lock();
+        try {
+            return balances.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void createAccounts(int numAccounts, int balance) throws IOException {
+        if (balances != null) {
+            log.info("journal already exists :: accounts={}", balances.size());
+            return;
+        }
+
+        // Segments of an earlier journal do not apply to the new accounts
+        for (long number : JournalSegment.list(dir)) {
+            Files.delete(JournalSegment.path(dir, number));
+        }
+
+        long start = System.currentTimeMillis();
+        Int2IntOpenHashMap accounts = new Int2IntOpenHashMap(numAccounts);
+        accounts.defaultReturnValue(AccountCache.defaultReturnValue);
+        for (int accountId = 0; accountId < numAccounts; accountId++) {
+            accounts.put(accountId, balance);
+        }
+
+        JournalSnapshot.write(dir, 0, accounts);
+        lock.lock();
+        try {
+            this.balances = accounts;
+            this.segment = JournalSegment.create(dir, 0, segmentSize);
+            prepareSpare(1);
+        } finally {
+            lock.unlock();
+        }
+        log.info("createAccounts :: count={}, time={}ms", numAccounts, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void shutdown() {
+        snapshotExecutor.shutdownNow();
+        try {
+            snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        snapshot();
+
+        lock.lock();
+        try {
+            running = false;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // An unused spare holds no records
+        preallocator.shutdown();
+        if (spare != null) {
+            try {
+                Files.deleteIfExists(JournalSegment.path(dir, spare.join().getNumber()));
+            } catch (IOException | CompletionException e) {
+                log.warn("Failed to delete spare journal segment", e);
+            }
+        }
+    }
+
+    private void addEntry(long txnId, int accountId, int delta, int balance) {
+        if (record.remaining() < ENTRY_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocate(record.capacity() * 2);
+            bigger.put(record.flip());
+            record = bigger;
+        }
+
+        record.putLong(txnId).putInt(accountId).putInt(delta).putInt(balance);
+    }
+
+    // Appends the record to the current segment, or to a new one when it is full
+    private void append(int count) throws IOException {
+        record.putInt(0, count);
+        int length = record.position();
+        if (length > JournalSegment.maxPayload(segmentSize)) {
+            throw new IOException("Batch exceeds journal segment :: bytes=" + length);
+        }
+
+        if (!segment.fits(length)) {
+            roll();
+        }
+
+        segment.append(record.array(), length, crc);
+        long maxTxnId = segmentMaxTxnIds.get(segment.getNumber());
+        for (int offset = Integer.BYTES; offset < length; offset += ENTRY_BYTES) {
+            maxTxnId = Math.max(maxTxnId, record.getLong(offset));
+        }
+        segmentMaxTxnIds.put(segment.getNumber(), maxTxnId);
+
+        writtenSeq++;
+        written.signal();
+    }
+
+    // Swaps in the preallocated spare, the flusher forces the full segment. Caller holds the lock.
+    private void roll() throws IOException {
+        if (!spare.isDone()) {
+            log.warn("Waiting for the spare journal segment :: segment={}", segment.getNumber() + 1);
+        }
+
+        JournalSegment next;
+        try {
+            next = spare.join();
+        } catch (CompletionException e) {
+            // Tried again on the next roll
+            prepareSpare(segment.getNumber() + 1);
+            throw new IOException("Failed to preallocate journal segment", e.getCause());
+        }
+
+        retired.add(new Retired(segment, segment == flushSegment ? flushPosition : 0));
+        segment = next;
+        flushSegment = next;
+        flushPosition = 0;
+        prepareSpare(next.getNumber() + 1);
+        written.signal();
+    }
+
+    // Zero fills the next segment on the preallocator thread
+    private void prepareSpare(long number) {
+        spare = CompletableFuture.supplyAsync(() -> {
+            try {
+                return JournalSegment.create(dir, number, segmentSize);
+            } catch (IOException e) {
+                log.error("Failed to preallocate journal segment :: segment={}", number, e);
+                throw new UncheckedIOException(e);
+            }
+        }, preallocator);
+    }
+
+    // Forces everything appended since the last pass, one force covers all batches written meanwhile
+    private void runFlusher() {
+        while (true) {
+            List<Retired> full;
+            JournalSegment target;
+            int from;
+            int to;
+            long seq;
+
+            lock.lock();
+            try {
+                while (running && flushedSeq == writtenSeq && retired.isEmpty()) {
+                    written.awaitUninterruptibly();
+                }
+                if (flushedSeq == writtenSeq && retired.isEmpty()) {
+                    return;
+                }
+
+                full = new ArrayList<>(retired);
+                target = segment;
+                from = target == flushSegment ? flushPosition : 0;
+                to = target.getPosition();
+                seq = writtenSeq;
+            } finally {
+                lock.unlock();
+            }
+
+            // Rolled segments first, batches waiting on them were written before the ones in the current segment
+            try {
+                for (Retired rolled : full) {
+                    rolled.segment().force(rolled.from(), rolled.segment().getPosition());
+                }
+                target.force(from, to);
+            } catch (UncheckedIOException e) {
+                // Waiting batches stay unanswered until a force succeeds
+                log.error("Failed to force journal :: segment={}", target.getNumber(), e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+
+            lock.lock();
+            try {
+                for (int i = 0; i < full.size(); i++) {
+                    retired.poll();
+                }
+                if (segment == target) {
+                    flushSegment = target;
+                    flushPosition = to;
+                }
+                flushedSeq = Math.max(flushedSeq, seq);
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Snapshots the balances as of a new segment and deletes what the snapshot and the window made obsolete
+    private void snapshot() {
+        if (balances == null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        JournalSegment first;
+        JournalSegment full = null;
+        int fullTo = 0;
+
+        lock.lock();
+        try {
+            // An empty segment is the start of the snapshot already
+            if (segment.getPosition() > 0) {
+                full = segment;
+                fullTo = segment.getPosition();
+                roll();
+            }
+            first = segment;
+
+            // Dedupe entries older than the window are rejected as expired anyway
+            if (txnWindow.isEnabled()) {
+                txns.expire(txnWindow.getCutoffBucket(start));
+            }
+        } catch (IOException e) {
+            log.error("Failed to roll journal segment", e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        long number = first.getNumber();
+        Int2IntOpenHashMap copy;
+        try {
+            // The transactions of the snapshot must be durable before it replaces the segments holding them
+            if (full != null) {
+                full.force(0, fullTo);
+            }
+
+            // Copied while batches go on, accounts are never added after start so the table is not rehashed meanwhile.
+            // Accounts changed since the roll are set back to their balance before their first journal entry.
+            copy = balances.clone();
+            rewind(copy, first);
+
+            JournalSnapshot.write(dir, number, copy);
+            for (long older : JournalSnapshot.list(dir)) {
+                if (older < number) {
+                    Files.deleteIfExists(JournalSnapshot.path(dir, older));
+                }
+            }
+            deleteExpiredSegments(number, start);
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to write journal snapshot :: segment={}", number, e);
+            return;
+        }
+
+        log.debug("Snapshot :: segment={}, accounts={}, txns={}, time={}ms", number, copy.size(), txns.size(), System.currentTimeMillis() - start);
+    }
+
+    // Undoes the entries appended from the first segment on, the copy may hold any of them
+    private void rewind(Int2IntOpenHashMap copy, JournalSegment first) throws IOException {
+        JournalSegment last;
+        int lastTo;
+        lock.lock();
+        try {
+            last = segment;
+            lastTo = segment.getPosition();
+        } finally {
+            lock.unlock();
+        }
+
+        IntOpenHashSet seen = new IntOpenHashSet();
+        JournalSegment.RecordConsumer undo = payload -> {
+            int count = payload.getInt(0);
+            for (int i = 0, offset = Integer.BYTES; i < count; i++, offset += ENTRY_BYTES) {
+                int accountId = payload.getInt(offset + Long.BYTES);
+                if (seen.add(accountId)) {
+                    int delta = payload.getInt(offset + Long.BYTES + Integer.BYTES);
+                    int balance = payload.getInt(offset + Long.BYTES + Integer.BYTES * 2);
+                    copy.put(accountId, balance - delta);
+                }
+            }
+        };
+
+        // Segments rolled away during the copy are complete
+        for (long number = first.getNumber(); number < last.getNumber(); number++) {
+            JournalSegment.read(dir, number, undo);
+        }
+        last.read(lastTo, undo);
+    }
+
+    private void deleteExpiredSegments(long snapshot, long now) throws IOException {
+        for (long number : JournalSegment.list(dir)) {
+            if (number >= snapshot) {
+                continue;
+            }
+
+            // Without a window, old segments keep every transaction id for dedupe after a restart
+            long maxTxnId;
+            lock.lock();
+            try {
+                maxTxnId = segmentMaxTxnIds.get(number);
+            } finally {
+                lock.unlock();
+            }
+            if (maxTxnId != 0 && !txnWindow.isExpired(maxTxnId, now)) {
+                continue;
+            }
+
+            Files.deleteIfExists(JournalSegment.path(dir, number));
+            lock.lock();
+            try {
+                segmentMaxTxnIds.remove(number);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Loads the newest valid snapshot and replays the segments in parallel, deltas commute so order does not matter
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        List<Long> snapshots = JournalSnapshot.list(dir);
+        long snapshot = -1;
+        for (int i = snapshots.size() - 1; i >= 0 && balances == null; i--) {
+            snapshot = snapshots.get(i);
+            balances = JournalSnapshot.read(dir, snapshot, AccountCache.defaultReturnValue);
+        }
+        if (balances == null) {
+            throw new IOException("No valid journal snapshot in " + dir);
+        }
+
+        List<Long> segments = JournalSegment.list(dir);
+        long now = System.currentTimeMillis();
+        List<Future<SegmentReplay>> replays = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())) {
+            for (long number : segments) {
+                boolean redo = number >= snapshot;
+                replays.add(executor.submit(() -> replay(number, redo, now)));
+            }
+        }
+
+        long replayed = 0;
+        try {
+            for (Future<SegmentReplay> future : replays) {
+                SegmentReplay replay = future.get();
+                Int2IntMaps.fastForEach(replay.deltas, entry -> balances.addTo(entry.getIntKey(), entry.getIntValue()));
+                replay.txnIds.forEach(txns::add);
+                segmentMaxTxnIds.put(replay.number, replay.maxTxnId);
+                replayed += replay.entries;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted journal replay", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to replay journal", e.getCause());
+        }
+
+        // Continue in a fresh segment, a torn tail of the last one is never appended to
+        long next = segments.isEmpty() ? snapshot : Math.max(snapshot, segments.getLast() + 1);
+        this.segment = JournalSegment.create(dir, next, segmentSize);
+        prepareSpare(next + 1);
+
+        log.info("Recovered journal :: accounts={}, snapshot={}, segments={}, replayed={}, txns={}, time={}ms",
+                balances.size(), snapshot, segments.size(), replayed, txns.size(), System.currentTimeMillis() - start);
+    }
+
+    private SegmentReplay replay(long number, boolean redo, long now) throws IOException {
+        SegmentReplay replay = new SegmentReplay(number);
+
+        JournalSegment.read(dir, number, payload -> {
+            int count = payload.getInt(0);
+            for (int i = 0, offset = Integer.BYTES; i < count; i++, offset += ENTRY_BYTES) {
+                long txnId = payload.getLong(offset);
+                replay.maxTxnId = Math.max(replay.maxTxnId, txnId);
+                if (!txnWindow.isExpired(txnId, now)) {
+                    replay.txnIds.add(txnId);
+                }
+                if (redo) {
+                    replay.deltas.addTo(payload.getInt(offset + Long.BYTES), payload.getInt(offset + Long.BYTES + Integer.BYTES));
+                    replay.entries++;
+                }
+            }
+        });
+
+        return replay;
+    }
+
+    // A rolled segment, forced by the flusher from the position it had not forced yet
+    private record Retired(JournalSegment segment, int from) { }
+
+    private static class SegmentReplay {
+        private final long number;
+        private final Int2IntOpenHashMap deltas = new Int2IntOpenHashMap();
+        private final LongArrayList txnIds = new LongArrayList();
+        private long maxTxnId;
+        private long entries;
+
+        private SegmentReplay(long number) {
+            this.number = number;
+        }
+    }
+}
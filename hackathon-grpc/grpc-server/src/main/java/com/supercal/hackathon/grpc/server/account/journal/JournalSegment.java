@@ -0,0 +1,151 @@
+package com.supercal.hackathon.grpc.server.account.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Preallocated, memory-mapped journal file. Records are {@code [length][crc32c][payload]} and a zero length marks
+ * the end, since the file is zero filled. Appends are serialized by the caller, force may run concurrently.
+ */
+public class JournalSegment {
+
+    public static final int MAX_SIZE_MB = 2047;
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+    private static final int ZERO_FILL_CHUNK = 1 << 20;
+
+    private final long number;
+    private final MappedByteBuffer buffer;
+    private int position;
+
+    private JournalSegment(long number, MappedByteBuffer buffer, int position) {
+        this.number = number;
+        this.buffer = buffer;
+        this.position = position;
+    }
+
+    public static JournalSegment create(Path dir, long number, int size) throws IOException {
+        Path path = path(dir, number);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Zero fill the whole file up front, a sparse file would allocate blocks on page faults of the mapped
+            // appends and a full disk would crash the process instead of failing the segment here
+            ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_FILL_CHUNK);
+            long written = 0;
+            while (written < size) {
+                zeros.clear().limit((int) Math.min(ZERO_FILL_CHUNK, size - written));
+                while (zeros.hasRemaining()) {
+                    written += channel.write(zeros, written);
+                }
+            }
+            channel.force(true);
+
+            return new JournalSegment(number, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), 0);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean fits(int payloadLength) {
+        // Keep room for the zero length end marker
+        return position + RECORD_HEADER + payloadLength + Integer.BYTES <= buffer.capacity();
+    }
+
+    public static int maxPayload(int size) {
+        return size - RECORD_HEADER - Integer.BYTES;
+    }
+
+    public void append(byte[] payload, int length, CRC32C crc) {
+        crc.reset();
+        crc.update(payload, 0, length);
+
+        // Length last, the crc catches records torn by a crash
+        buffer.put(position + RECORD_HEADER, payload, 0, length);
+        buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+        buffer.putInt(position, length);
+        position += RECORD_HEADER + length;
+    }
+
+    public void force(int from, int to) {
+        if (to > from) {
+            buffer.force(from, to - from);
+        }
+    }
+
+    public static Path path(Path dir, long number) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    public static List<Long> list(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+
+        numbers.sort(null);
+        return numbers;
+    }
+
+    // Calls the consumer for every complete record, stops at the end marker or at a torn record
+    public static void read(Path dir, long number, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(dir, number), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(buffer, buffer.capacity(), consumer);
+        }
+    }
+
+    // Records appended before the position, the appends must happen-before this call
+    public void read(int to, RecordConsumer consumer) {
+        read(buffer, to, consumer);
+    }
+
+    private static void read(ByteBuffer buffer, int limit, RecordConsumer consumer) {
+        CRC32C crc = new CRC32C();
+        int position = 0;
+
+        while (position + RECORD_HEADER <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > limit) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.slice(position + RECORD_HEADER, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                break;
+            }
+
+            consumer.accept(payload);
+            position += RECORD_HEADER + length;
+        }
+    }
+
+    @FunctionalInterface
+    public interface RecordConsumer {
+        void accept(ByteBuffer payload);
+    }
+}
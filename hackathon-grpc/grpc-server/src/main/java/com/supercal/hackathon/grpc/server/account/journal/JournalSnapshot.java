@@ -0,0 +1,105 @@
+package com.supercal.hackathon.grpc.server.account.journal;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Balances as of the start of a journal segment. {@code snapshot-N} plus the segments from N on give the current state.
+ */
+@Slf4j
+public class JournalSnapshot {
+
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".dat";
+    private static final int MAGIC = 0x4A534E31;
+
+    private JournalSnapshot() { }
+
+    public static void write(Path dir, long segment, Int2IntMap balances) throws IOException {
+        Path path = path(dir, segment);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+
+        // Buffering below the checksum, so the crc covers exactly the bytes written before it
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeLong(segment);
+            out.writeInt(balances.size());
+            for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(balances)) {
+                out.writeInt(entry.getIntKey());
+                out.writeInt(entry.getIntValue());
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Returns null when the snapshot is incomplete or corrupt
+    public static Int2IntOpenHashMap read(Path dir, long segment, int defaultReturnValue) throws IOException {
+        CRC32C crc = new CRC32C();
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path(dir, segment)), 1 << 16), crc))) {
+            if (in.readInt() != MAGIC || in.readLong() != segment) {
+                return null;
+            }
+
+            int size = in.readInt();
+            Int2IntOpenHashMap balances = new Int2IntOpenHashMap(size);
+            balances.defaultReturnValue(defaultReturnValue);
+            for (int i = 0; i < size; i++) {
+                balances.put(in.readInt(), in.readInt());
+            }
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                log.warn("Corrupt snapshot :: segment={}", segment);
+                return null;
+            }
+
+            return balances;
+        } catch (EOFException e) {
+            log.warn("Incomplete snapshot :: segment={}", segment);
+            return null;
+        }
+    }
+
+    public static Path path(Path dir, long segment) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    public static List<Long> list(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+
+        numbers.sort(null);
+        return numbers;
+    }
+}
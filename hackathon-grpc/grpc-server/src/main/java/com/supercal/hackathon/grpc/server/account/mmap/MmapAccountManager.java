@@ -0,0 +1,274 @@
+package com.supercal.hackathon.grpc.server.account.mmap;
+
+import com.supercal.hackathon.grpc.proto.Action;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import com.supercal.hackathon.grpc.server.account.AccountManager;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
+import com.supercal.hackathon.grpc.server.account.WindowedTxnSet;
+import io.grpc.stub.StreamObserver;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_FAILED;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_SUCCESS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_TRANSACTION_EXPIRED;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.respond;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toResponse;
+
+/**
+ * Balances in a memory-mapped file addressed by account id, made crash consistent by a redo log. A batch is
+ * logged before its balances are stored, checkpoints force the mapping and rotate the log.
+ */
+@Slf4j
+public class MmapAccountManager implements AccountManager {
+
+    private static final String BALANCES_FILE = "balances.dat";
+
+    private final GrpcServerConfig config;
+    private final Path dir;
+    private final TxnWindow txnWindow;
+    private final WindowedTxnSet txns;
+    private final ReentrantLock lock;
+    private final ScheduledExecutorService checkpointExecutor;
+
+    // Highest transaction id of every retained log, logs are kept for dedupe until the window passed them
+    private final Long2LongOpenHashMap logMaxTxnIds;
+
+    private MmapBalances balances;
+    private RedoLog redoLog;
+
+    public MmapAccountManager(GrpcServerConfig config) throws IOException {
+        this.config = config;
+        this.dir = Path.of(config.getMmapDir());
+        this.txnWindow = new TxnWindow(config.getTxnWindowSeconds() * 1000L, config.getTxnWindowBucketSeconds() * 1000L);
+        this.txns = new WindowedTxnSet(txnWindow);
+        this.lock = new ReentrantLock();
+        this.logMaxTxnIds = new Long2LongOpenHashMap();
+
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve(BALANCES_FILE))) {
+            recover();
+        }
+
+        this.checkpointExecutor = Executors.newSingleThreadScheduledExecutor();
+        if (config.getMmapCheckpointSeconds() > 0) {
+            checkpointExecutor.scheduleWithFixedDelay(this::checkpoint, config.getMmapCheckpointSeconds(),
+                    config.getMmapCheckpointSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
+        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+        Int2IntOpenHashMap updates = new Int2IntOpenHashMap();
+        LongOpenHashSet batchTxnIds = new LongOpenHashSet();
+        long now = System.currentTimeMillis();
+
+        // One batch at a time, the lock covers the dedupe set, the log append and the balance stores
+        lock.lock();
+        try {
+            redoLog.begin();
+
+            for (BalanceUpdateRequest request : batch.getRequestList()) {
+                long txnId = request.getTransactionId();
+                int accountId = request.getAccountId();
+
+                if (txnWindow.isExpired(txnId, now)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_TRANSACTION_EXPIRED));
+                    continue;
+                }
+
+                if (batchTxnIds.contains(txnId) || txns.contains(txnId)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_DUPLICATE_TRANSACTION));
+                    continue;
+                }
+
+                if (!balances.contains(accountId)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_ACCOUNT_NOT_FOUND));
+                    continue;
+                }
+
+                // Earlier requests of this batch are not stored yet
+                int balance = updates.containsKey(accountId) ? updates.get(accountId) : balances.get(accountId);
+                if (request.getAction() == Action.ACTION_CREDIT) {
+                    balance += request.getAmount();
+                } else if (request.getAction() == Action.ACTION_DEBIT) {
+                    if (balance < request.getAmount()) {
+                        builder.addResponse(toResponse(request, OPERATION_STATUS_INSUFFICIENT_FUNDS, balance));
+                        continue;
+                    }
+                    balance -= request.getAmount();
+                } else {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_FAILED, balance));
+                    continue;
+                }
+
+                updates.put(accountId, balance);
+                batchTxnIds.add(txnId);
+                redoLog.add(txnId, accountId, balance);
+                builder.addResponse(toResponse(request, OPERATION_STATUS_SUCCESS, balance));
+            }
+
+            // Redo record first, a stored balance must never be ahead of the log
+            redoLog.commit(config.isMmapLogSync());
+            updates.int2IntEntrySet().fastForEach(entry -> balances.set(entry.getIntKey(), entry.getIntValue()));
+            batchTxnIds.forEach(txns::add);
+        } catch (IOException e) {
+            // Nothing was applied, the client retries the batch
+            log.error("Failed to log batch :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId(), e);
+            observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchError(true).setPartition(batch.getPartition()).setBatchId(batch.getBatchId()).build());
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        respond(observer, batch, builder, config.isResponseCoalesce());
+    }
+
+    @Override
+    public Int2IntOpenHashMap getAccounts() {
+        Int2IntOpenHashMap accountMap = new Int2IntOpenHashMap(balances.getAccounts());
+        for (int accountId = 0; accountId < balances.getAccounts(); accountId++) {
+            accountMap.put(accountId, balances.get(accountId));
+        }
+
+        return accountMap;
+    }
+
+    @Override
+    public void createAccounts(int numAccounts, int balance) throws IOException {
+        if (balances != null) {
+            log.info("balance file already exists :: accounts={}", balances.getAccounts());
+            return;
+        }
+
+        // Logs of an earlier balance file do not apply to the new one
+        for (long number : RedoLog.list(dir)) {
+            Files.delete(RedoLog.path(dir, number));
+        }
+
+        long start = System.currentTimeMillis();
+        this.balances = MmapBalances.create(dir.resolve(BALANCES_FILE), numAccounts, balance, 0);
+        this.redoLog = new RedoLog(dir, 0);
+        log.info("createAccounts :: count={}, time={}ms", numAccounts, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void shutdown() {
+        checkpointExecutor.shutdownNow();
+        try {
+            checkpointExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkpoint();
+        try {
+            redoLog.close();
+        } catch (IOException e) {
+            log.error("Failed to close redo log", e);
+        }
+    }
+
+    // Rotates the log, forces the balances and moves the checkpoint past the logs they contain
+    private void checkpoint() {
+        if (balances == null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long checkpoint;
+
+        lock.lock();
+        try {
+            logMaxTxnIds.put(redoLog.getNumber(), redoLog.getMaxTxnId());
+            checkpoint = redoLog.rotate();
+
+            // Dedupe entries older than the window are rejected as expired anyway
+            if (txnWindow.isEnabled()) {
+                txns.expire(txnWindow.getCutoffBucket(start));
+            }
+        } catch (IOException e) {
+            log.error("Failed to rotate redo log", e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        // Every balance of the older logs is in the mapping, newer writes may be as well
+        balances.force();
+        balances.setCheckpoint(checkpoint);
+        deleteExpiredLogs(checkpoint, start);
+
+        log.debug("Checkpoint :: log={}, txns={}, time={}ms", checkpoint, txns.size(), System.currentTimeMillis() - start);
+    }
+
+    private void deleteExpiredLogs(long checkpoint, long now) {
+        logMaxTxnIds.long2LongEntrySet().removeIf(entry -> {
+            // Without a window, old logs keep every transaction id for dedupe after a restart
+            if (entry.getLongKey() >= checkpoint || !txnWindow.isExpired(entry.getLongValue(), now)) {
+                return false;
+            }
+
+            try {
+                Files.deleteIfExists(RedoLog.path(dir, entry.getLongKey()));
+                return true;
+            } catch (IOException e) {
+                log.error("Failed to delete redo log :: log={}", entry.getLongKey(), e);
+                return false;
+            }
+        });
+    }
+
+    // Maps the balances, replays logs from the checkpoint and rebuilds the dedupe set from all retained logs
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        this.balances = MmapBalances.open(dir.resolve(BALANCES_FILE));
+        long checkpoint = balances.getCheckpoint();
+        List<Long> logs = RedoLog.list(dir);
+        long now = System.currentTimeMillis();
+
+        long replayed = 0;
+        for (long number : logs) {
+            boolean redo = number >= checkpoint;
+            long[] count = new long[1];
+            long maxTxnId = RedoLog.replay(RedoLog.path(dir, number), (txnId, accountId, balance) -> {
+                if (!txnWindow.isExpired(txnId, now)) {
+                    txns.add(txnId);
+                }
+                if (redo) {
+                    balances.set(accountId, balance);
+                    count[0]++;
+                }
+            });
+
+            logMaxTxnIds.put(number, maxTxnId);
+            replayed += count[0];
+        }
+
+        // Continue in a fresh log, the replayed ones are checkpointed with the next checkpoint
+        long next = logs.isEmpty() ? checkpoint : Math.max(checkpoint, logs.getLast() + 1);
+        this.redoLog = new RedoLog(dir, next);
+        logMaxTxnIds.remove(next);
+
+        log.info("Recovered balances :: accounts={}, checkpoint={}, logs={}, replayed={}, txns={}, time={}ms",
+                balances.getAccounts(), checkpoint, logs.size(), replayed, txns.size(), System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,114 @@
+package com.supercal.hackathon.grpc.server.account.mmap;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Dense account balances in a memory-mapped file, the balance of account N is the int at {@code HEADER_BYTES + N * 4}.
+ * The header holds the account count and the first redo log that is not yet checkpointed into the balances.
+ */
+public class MmapBalances {
+
+    private static final int MAGIC = 0x42414C31;
+    private static final int HEADER_BYTES = 4096;
+    private static final int ACCOUNTS_OFFSET = 4;
+    private static final int CHECKPOINT_OFFSET = 8;
+
+    // 1GB mappings, a single MappedByteBuffer is limited to 2GB
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final int accounts;
+
+    private MmapBalances(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a balance file: " + path);
+            }
+
+            this.accounts = header.getInt(ACCOUNTS_OFFSET);
+            int segmentCount = (int) (((long) accounts + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long first = (long) i << SEGMENT_SHIFT;
+                long size = Math.min(1L << SEGMENT_SHIFT, accounts - first) * Integer.BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * Integer.BYTES, size);
+                segments[i].order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    public static MmapBalances open(Path path) throws IOException {
+        return new MmapBalances(path);
+    }
+
+    // Fills a temporary file and renames it, so a crash never leaves a half created balance file
+    public static MmapBalances create(Path path, int accounts, int balance, long checkpoint) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = HEADER_BYTES + (long) accounts * Integer.BYTES;
+            for (long position = HEADER_BYTES; position < length; position += 1L << (SEGMENT_SHIFT + 2)) {
+                long size = Math.min(1L << (SEGMENT_SHIFT + 2), length - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                segment.order(ByteOrder.nativeOrder());
+                for (int offset = 0; offset < size; offset += Integer.BYTES) {
+                    segment.putInt(offset, balance);
+                }
+                segment.force();
+            }
+
+            // Header last, the file is only valid once it is complete
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putInt(ACCOUNTS_OFFSET, accounts);
+            header.putLong(CHECKPOINT_OFFSET, checkpoint);
+            header.putInt(0, MAGIC);
+            header.force();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new MmapBalances(path);
+    }
+
+    public int getAccounts() {
+        return accounts;
+    }
+
+    public boolean contains(int accountId) {
+        return Integer.compareUnsigned(accountId, accounts) < 0;
+    }
+
+    public int get(int accountId) {
+        return segments[accountId >>> SEGMENT_SHIFT].getInt((accountId & SEGMENT_MASK) * Integer.BYTES);
+    }
+
+    public void set(int accountId, int balance) {
+        segments[accountId >>> SEGMENT_SHIFT].putInt((accountId & SEGMENT_MASK) * Integer.BYTES, balance);
+    }
+
+    public long getCheckpoint() {
+        return header.getLong(CHECKPOINT_OFFSET);
+    }
+
+    // Balances must be forced before the checkpoint moves past the logs that produced them
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public void setCheckpoint(long checkpoint) {
+        header.putLong(CHECKPOINT_OFFSET, checkpoint);
+        header.force();
+    }
+}
@@ -0,0 +1,195 @@
+package com.supercal.hackathon.grpc.server.account.mmap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Sequential redo log of applied transactions. A record is {@code [count][txnId, accountId, balance]*[crc32c]} and
+ * holds absolute balances, so replaying a record twice is harmless. Logs are numbered and rotated at checkpoints.
+ * Not thread-safe.
+ */
+@Slf4j
+public class RedoLog implements AutoCloseable {
+
+    private static final String PREFIX = "redo-";
+    private static final String SUFFIX = ".log";
+    private static final int ENTRY_BYTES = Long.BYTES + Integer.BYTES * 2;
+
+    private final Path dir;
+    private final CRC32C crc;
+    private ByteBuffer buffer;
+    private FileChannel channel;
+    private long number;
+    private long maxTxnId;
+    private int count;
+
+    public RedoLog(Path dir, long number) throws IOException {
+        this.dir = dir;
+        this.crc = new CRC32C();
+        this.buffer = ByteBuffer.allocateDirect(64 * 1024);
+        open(number);
+    }
+
+    public void begin() {
+        buffer.clear().position(Integer.BYTES);
+        count = 0;
+    }
+
+    public void add(long txnId, int accountId, int balance) {
+        if (buffer.remaining() < ENTRY_BYTES + Integer.BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            bigger.put(buffer.flip());
+            buffer = bigger;
+        }
+
+        buffer.putLong(txnId).putInt(accountId).putInt(balance);
+        maxTxnId = Math.max(maxTxnId, txnId);
+        count++;
+    }
+
+    public void commit(boolean sync) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        buffer.putInt(0, count);
+        crc.reset();
+        crc.update(buffer.duplicate().flip());
+        buffer.putInt((int) crc.getValue());
+
+        // A failed write is cut off again, replay stops at the first torn record
+        long start = channel.size();
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    // Starts the next log, returns its number
+    public long rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        open(number + 1);
+
+        return number;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    // Highest transaction id of the current log
+    public long getMaxTxnId() {
+        return maxTxnId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void open(long number) throws IOException {
+        this.number = number;
+        this.maxTxnId = 0;
+        this.channel = FileChannel.open(path(dir, number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public static Path path(Path dir, long number) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    public static List<Long> list(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+
+        numbers.sort(null);
+        return numbers;
+    }
+
+    /**
+     * Replays every complete record of a log and cuts off a torn tail left by a crash.
+     * Returns the highest transaction id of the log.
+     */
+    public static long replay(Path file, EntryConsumer consumer) throws IOException {
+        long maxTxnId = 0;
+        long valid = 0;
+        CRC32C crc = new CRC32C();
+        ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+
+            while (size - valid >= Integer.BYTES) {
+                ByteBuffer countBuffer = record.clear().limit(Integer.BYTES);
+                channel.read(countBuffer, valid);
+                int count = record.getInt(0);
+                long length = Integer.BYTES + (long) count * ENTRY_BYTES + Integer.BYTES;
+                if (count <= 0 || size - valid < length || length > Integer.MAX_VALUE) {
+                    break;
+                }
+
+                if (record.capacity() < length) {
+                    record = ByteBuffer.allocate((int) length);
+                }
+                record.clear().limit((int) length);
+                while (record.hasRemaining()) {
+                    channel.read(record, valid + record.position());
+                }
+
+                crc.reset();
+                crc.update(record.array(), 0, (int) length - Integer.BYTES);
+                if ((int) crc.getValue() != record.getInt((int) length - Integer.BYTES)) {
+                    break;
+                }
+
+                record.position(Integer.BYTES);
+                for (int i = 0; i < count; i++) {
+                    long txnId = record.getLong();
+                    int accountId = record.getInt();
+                    int balance = record.getInt();
+                    maxTxnId = Math.max(maxTxnId, txnId);
+                    consumer.accept(txnId, accountId, balance);
+                }
+
+                valid += length;
+            }
+
+            if (valid < size) {
+                log.warn("Truncating torn redo log tail :: file={}, valid={}, size={}", file, valid, size);
+                channel.truncate(valid);
+            }
+        }
+
+        return maxTxnId;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long txnId, int accountId, int balance);
+    }
+}
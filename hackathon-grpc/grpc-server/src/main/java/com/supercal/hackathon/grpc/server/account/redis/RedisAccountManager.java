@@ -2,11 +2,11 @@ package com.supercal.hackathon.grpc.server.account.redis;
 
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
-import com.supercal.hackathon.grpc.proto.BalanceUpdateResponse;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
 import com.supercal.hackathon.grpc.proto.OperationStatus;
 import com.supercal.hackathon.grpc.server.GrpcServerConfig;
 import com.supercal.hackathon.grpc.server.account.AccountManager;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
 import io.grpc.stub.StreamObserver;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import lombok.extern.slf4j.Slf4j;
@@ -14,51 +14,190 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
 import redis.clients.jedis.params.ScanParams;
 import redis.clients.jedis.resps.ScanResult;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_TRANSACTION_EXPIRED;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.respond;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toResponse;
+
+/**
+ * Balances in Redis hashes, spread over slots that map to one or more independent standalone Redis nodes, sharded on
+ * the client. A batch is split by slot, the slot groups run in parallel, each as a few calls of one preloaded Lua
+ * script in its own pipeline, and the results are merged back in request order. The script dedupes with
+ * {@code SET NX PX}, applies the requests and returns packed results.
+ * <p>
+ * Redis Cluster is not supported: slots map to nodes by {@code slot % nodes} rather than by the cluster's hash slot
+ * ownership, and the script builds its keys from prefixes instead of declaring them in {@code KEYS}. Cluster nodes
+ * are refused at startup.
+ */
 @Slf4j
 public class RedisAccountManager implements AccountManager {
 
     private static final String ACCOUNT_PREFIX = "acc:";
-    private final JedisPool jedisPool;
-
-    private final static String ADD_BALANCE = """
-            local balance = tonumber(redis.call("HGET", KEYS[1], "a"))
-               local increment = tonumber(ARGV[1])
-            
-               if balance then
-                   local newBalance = balance + increment
-                   if newBalance >= 0 then
-                       redis.call("HSET", KEYS[1], "a", newBalance)
-                       return newBalance
-                   else
-                       return "INSUFFICIENT_FUNDS"  -- More explicit error
-               else
-                   return "ACCOUNT_NOT_FOUND"  -- More explicit error
-               end
+    private static final String TXN_PREFIX = "txn:";
+    private static final byte[] BALANCE_FIELD = "a".getBytes(StandardCharsets.UTF_8);
+
+    // txnId (raw 8 bytes), accountId, amount, action
+    private static final int REQUEST_BYTES = Long.BYTES + Integer.BYTES * 2 + 1;
+    // status, balance
+    private static final int RESULT_BYTES = 1 + Integer.BYTES;
+
+    /*
+     * KEYS[1] account key prefix, KEYS[2] txn key prefix of the slot, the keys are derived from them in the script.
+     * ARGV[1] packed requests, ARGV[2] dedupe key ttl in ms.
+     * Returns one packed result per request. Transaction ids stay raw bytes, Lua numbers lose precision past 2^53.
+     */
+    private static final String BATCH_SCRIPT = """
+            local requests = ARGV[1]
+            local ttl = ARGV[2]
+            local accountPrefix = KEYS[1]
+            local txnPrefix = KEYS[2]
+            local results = {}
+            local position = 1
+
+            while position <= #requests do
+                local txnId, accountId, amount, action
+                txnId, accountId, amount, action, position = struct.unpack('>c8i4i4B', requests, position)
+
+                local status = 1
+                local balance = 0
+                local txnKey = txnPrefix .. txnId
+                local accountKey = accountPrefix .. accountId
+
+                if not redis.call('SET', txnKey, '1', 'NX', 'PX', ttl) then
+                    status = 6
+                else
+                    local current = redis.call('HGET', accountKey, 'a')
+                    if not current then
+                        status = 4
+                    else
+                        balance = tonumber(current)
+                        if amount <= 0 then
+                            status = 3
+                        elseif action == 1 then
+                            -- Balances are packed as int32, a credit past it is rejected rather than wrapped
+                            if balance + amount > 2147483647 then
+                                status = 3
+                            else
+                                balance = redis.call('HINCRBY', accountKey, 'a', amount)
+                            end
+                        elseif action == 0 then
+                            if balance < amount then
+                                status = 2
+                            else
+                                balance = redis.call('HINCRBY', accountKey, 'a', -amount)
+                            end
+                        else
+                            status = 5
+                        end
+                    end
+
+                    -- Only applied transactions are remembered
+                    if status ~= 1 then
+                        redis.call('DEL', txnKey)
+                    end
+                end
+
+                results[#results + 1] = struct.pack('>Bi4', status, balance)
+            end
+
+            return table.concat(results)
             """;
 
+    private final JedisPool[] jedisPools;
+    private final int slots;
+    private final byte[][] accountPrefixes;
+    private final byte[][] txnPrefixes;
+    private final TxnWindow txnWindow;
+    private final int scriptBatchSize;
+    private final byte[] txnTtl;
+    private final ExecutorService executor;
+    private final boolean responseCoalesce;
+    private volatile byte[] scriptSha;
+
     public RedisAccountManager(GrpcServerConfig grpcServerConfig) {
         JedisPoolConfig config = new JedisPoolConfig();
         config.setMaxTotal(grpcServerConfig.getRedisConnections());
         config.setMaxIdle(grpcServerConfig.getRedisConnections());
         config.setMinIdle(grpcServerConfig.getRedisConnections());
 
-        this.jedisPool = new JedisPool(config, grpcServerConfig.getRedisHost(), grpcServerConfig.getRedisPort());
+        // One pool per node, a single node defaults to redis.host and redis.port
+        String nodes = grpcServerConfig.getRedisNodes().isBlank()
+                ? grpcServerConfig.getRedisHost() + ":" + grpcServerConfig.getRedisPort()
+                : grpcServerConfig.getRedisNodes();
+        String[] addresses = nodes.split(",");
+        this.jedisPools = new JedisPool[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String[] hostPort = addresses[i].trim().split(":");
+            jedisPools[i] = new JedisPool(config, hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+
+        this.slots = Math.max(grpcServerConfig.getRedisSlots(), jedisPools.length);
+        this.accountPrefixes = new byte[slots][];
+        this.txnPrefixes = new byte[slots][];
+        for (int slot = 0; slot < slots; slot++) {
+            accountPrefixes[slot] = (ACCOUNT_PREFIX + "{" + slot + "}:").getBytes(StandardCharsets.UTF_8);
+            txnPrefixes[slot] = (TXN_PREFIX + "{" + slot + "}:").getBytes(StandardCharsets.UTF_8);
+        }
+
+        this.txnWindow = new TxnWindow(grpcServerConfig.getTxnWindowSeconds() * 1000L, grpcServerConfig.getTxnWindowBucketSeconds() * 1000L);
+        this.scriptBatchSize = grpcServerConfig.getRedisScriptBatchSize();
+        this.txnTtl = String.valueOf(grpcServerConfig.getRedisTxnTtlSeconds() * 1000L).getBytes(StandardCharsets.UTF_8);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.responseCoalesce = grpcServerConfig.isResponseCoalesce();
+
+        for (int i = 0; i < jedisPools.length; i++) {
+            try (Jedis jedis = jedisPools[i].getResource()) {
+                if (jedis.info("cluster").contains("cluster_enabled:1")) {
+                    throw new IllegalArgumentException("Redis Cluster is not supported, redis.nodes must list standalone servers :: node="
+                            + addresses[i].trim());
+                }
+                loadScript(jedis);
+            }
+        }
+        log.info("Redis nodes :: nodes={}, slots={}", jedisPools.length, slots);
     }
 
     @Override
     public void createAccounts(int numAccounts, int initialAmount) {
-        try (Jedis jedis = jedisPool.getResource()) {
-            for (int uid = 1; uid <= numAccounts; uid++) {
-                String accountKey = ACCOUNT_PREFIX + uid;
-                jedis.hset(accountKey, "a", String.valueOf(initialAmount)); // Set each account amount
-            }
+        byte[] amount = String.valueOf(initialAmount).getBytes(StandardCharsets.UTF_8);
 
-            System.out.println("Generated " + numAccounts + " accounts with initial amount: " + initialAmount);
+        for (int node = 0; node < jedisPools.length; node++) {
+            try (Jedis jedis = jedisPools[node].getResource()) {
+                Pipeline p = jedis.pipelined();
+                int pending = 0;
+                for (int accountId = 0; accountId < numAccounts; accountId++) {
+                    int slot = slot(accountId);
+                    if (node(slot) != node) {
+                        continue;
+                    }
+
+                    p.hset(accountKey(slot, accountId), BALANCE_FIELD, amount);
+                    if (++pending % 10_000 == 0) {
+                        p.sync();
+                    }
+                }
+                p.sync();
+            }
         }
+
+        log.info("createAccounts :: count={}, amount={}", numAccounts, initialAmount);
     }
 
 //    @Override
@@ -105,70 +244,207 @@ public class RedisAccountManager implements AccountManager {
 
     @Override
     public Int2IntOpenHashMap getAccounts() {
-        throw new RuntimeException("not implemented");
+        Int2IntOpenHashMap accountMap = new Int2IntOpenHashMap();
+
+        for (JedisPool jedisPool : jedisPools) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                ScanParams scanParams = new ScanParams().match(ACCOUNT_PREFIX + "*").count(1000);
+                String cursor = "0";
+
+                do {
+                    ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+                    cursor = scanResult.getCursor();
+
+                    Pipeline p = jedis.pipelined();
+                    List<Response<String>> balances = new ArrayList<>(scanResult.getResult().size());
+                    for (String key : scanResult.getResult()) {
+                        balances.add(p.hget(key, "a"));
+                    }
+                    p.sync();
+
+                    // acc:{slot}:accountId
+                    for (int i = 0; i < balances.size(); i++) {
+                        String key = scanResult.getResult().get(i);
+                        accountMap.put(Integer.parseInt(key.substring(key.lastIndexOf(':') + 1)), Integer.parseInt(balances.get(i).get()));
+                    }
+                } while (!cursor.equals("0"));
+            }
+        }
+
+        return accountMap;
     }
 
     @Override
     public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
-        try (Jedis jedis = jedisPool.getResource()) {
-            Pipeline p = jedis.pipelined();
+        long now = System.currentTimeMillis();
+        SlotGroup[] groups = group(batch, now);
+
+        try {
+            // Slot groups run on their own connections in parallel, the caller takes the last one
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            SlotGroup last = null;
+            for (SlotGroup group : groups) {
+                if (group == null) {
+                    continue;
+                }
+                if (last != null) {
+                    SlotGroup pending = last;
+                    futures.add(CompletableFuture.runAsync(() -> execute(pending), executor));
+                }
+                last = group;
+            }
+            if (last != null) {
+                execute(last);
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
 
+            BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
             for (BalanceUpdateRequest request : batch.getRequestList()) {
-                p.eval(ADD_BALANCE, request.getAccountId(), String.valueOf(request.getAmount()));
+                if (txnWindow.isExpired(request.getTransactionId(), now)) {
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_TRANSACTION_EXPIRED));
+                    continue;
+                }
+
+                // Results of a slot group are in the order its requests were packed
+                ByteBuffer results = groups[slot(request.getAccountId())].results;
+                OperationStatus status = OperationStatus.forNumber(results.get());
+                int balance = results.getInt();
+                if (status == OPERATION_STATUS_DUPLICATE_TRANSACTION || status == OPERATION_STATUS_ACCOUNT_NOT_FOUND) {
+                    builder.addResponse(toResponse(request, status));
+                } else {
+                    builder.addResponse(toResponse(request, status, balance));
+                }
             }
-            p.sync();
 
-        } catch (Exception e) {
-            log.error("Unexpected error changing balance for account: {}", e.getMessage());
+            respond(observer, batch, builder, responseCoalesce);
+        } catch (JedisException | CompletionException e) {
+            log.error("Failed to change balances :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId(), e);
+            observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchError(true).setPartition(batch.getPartition()).setBatchId(batch.getBatchId()).build());
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.close();
+        for (JedisPool jedisPool : jedisPools) {
+            jedisPool.close();
         }
     }
 
-    public BalanceUpdateResponse changeBalance(BalanceUpdateRequest request) {
-        int accountId = request.getAccountId();
-        String accountKey = ACCOUNT_PREFIX + accountId;
-
-        try (Jedis jedis = jedisPool.getResource()) {
-            // Execute the Lua script
-            String result = (String) jedis.eval(ADD_BALANCE, 1, accountKey, String.valueOf(request.getAmount()));
-
-            // Handle Lua script results
-            if ("INSUFFICIENT_FUNDS".equals(result)) {
-                log.warn("Insufficient funds for account: {}", accountId);
-                return BalanceUpdateResponse.newBuilder().setStatus(OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS).build();
-            } else if ("ACCOUNT_NOT_FOUND".equals(result)) {
-                log.warn("Account not found: {}", accountId);
-                return BalanceUpdateResponse.newBuilder().setStatus(OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND).build();
+    // Packs the requests that are not expired by slot, into sub-batches of at most scriptBatchSize
+    private SlotGroup[] group(BalanceUpdateRequestBatch batch, long now) {
+        SlotGroup[] groups = new SlotGroup[slots];
+        int bufferSize = Math.min(batch.getRequestCount(), scriptBatchSize) * REQUEST_BYTES;
+
+        for (BalanceUpdateRequest request : batch.getRequestList()) {
+            if (txnWindow.isExpired(request.getTransactionId(), now)) {
+                continue;
+            }
+
+            int slot = slot(request.getAccountId());
+            SlotGroup group = groups[slot];
+            if (group == null) {
+                group = groups[slot] = new SlotGroup(slot, bufferSize);
+            }
+
+            group.buffer.putLong(request.getTransactionId())
+                    .putInt(request.getAccountId())
+                    .putInt(request.getAmount())
+                    .put((byte) request.getActionValue());
+            group.count++;
+
+            if (!group.buffer.hasRemaining()) {
+                group.packed.add(group.buffer.array());
+                group.buffer = ByteBuffer.allocate(bufferSize);
             }
+        }
 
-            // Successfully changed balance
-            log.info("Balance for account {} changed successfully. New balance: {}", accountId, result);
-        } catch (JedisException e) {
-            log.error("Jedis error changing balance for account {}: {}", accountId, e.getMessage());
-            return BalanceUpdateResponse.newBuilder().setStatus(OperationStatus.OPERATION_STATUS_FAILED).build();
-        } catch (Exception e) {
-            log.error("Unexpected error changing balance for account {}: {}", accountId, e.getMessage());
-            return BalanceUpdateResponse.newBuilder().setStatus(OperationStatus.OPERATION_STATUS_FAILED).build();
+        for (SlotGroup group : groups) {
+            if (group != null && group.buffer.position() > 0) {
+                group.packed.add(Arrays.copyOf(group.buffer.array(), group.buffer.position()));
+            }
         }
 
-        return BalanceUpdateResponse.newBuilder().setStatus(OperationStatus.OPERATION_STATUS_SUCCESS).build();
+        return groups;
+    }
+
+    // Runs all sub-batches of a slot group in one pipeline round-trip
+    private void execute(SlotGroup group) {
+        try (Jedis jedis = jedisPools[node(group.slot)].getResource()) {
+            List<byte[]> keys = List.of(accountPrefixes[group.slot], txnPrefixes[group.slot]);
+            Pipeline p = jedis.pipelined();
+            List<Response<Object>> replies = new ArrayList<>(group.packed.size());
+            for (byte[] requests : group.packed) {
+                replies.add(p.evalsha(scriptSha, keys, List.of(requests, txnTtl)));
+            }
+            p.sync();
+
+            group.results = ByteBuffer.allocate(group.count * RESULT_BYTES);
+            for (int i = 0; i < replies.size(); i++) {
+                group.results.put(getReply(jedis, replies.get(i), keys, group.packed.get(i)));
+            }
+            group.results.flip();
+        }
+    }
+
+    // A flushed or restarted server lost the script, the failed call did not run and is repeated once
+    private byte[] getReply(Jedis jedis, Response<Object> reply, List<byte[]> keys, byte[] requests) {
+        try {
+            return (byte[]) reply.get();
+        } catch (JedisNoScriptException e) {
+            loadScript(jedis);
+            return (byte[]) jedis.evalsha(scriptSha, keys, List.of(requests, txnTtl));
+        }
+    }
+
+    private void loadScript(Jedis jedis) {
+        this.scriptSha = jedis.scriptLoad(BATCH_SCRIPT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int slot(int accountId) {
+        return Integer.remainderUnsigned(accountId, slots);
+    }
+
+    private int node(int slot) {
+        return slot % jedisPools.length;
+    }
+
+    private byte[] accountKey(int slot, int accountId) {
+        return (ACCOUNT_PREFIX + "{" + slot + "}:" + accountId).getBytes(StandardCharsets.UTF_8);
     }
 
     public void deleteAllAccounts() {
-        try (Jedis jedis = jedisPool.getResource()) {
-            String cursor = "0";
-            String pattern = ACCOUNT_PREFIX + "*";
-
-            do {
-                ScanResult<String> scanResult = jedis.scan(cursor, new ScanParams().match(pattern));
-                cursor = scanResult.getCursor();
-                if (!scanResult.getResult().isEmpty()) {
-                    jedis.del(scanResult.getResult().toArray(new String[0]));
-                }
-            } while (!cursor.equals("0"));
+        for (JedisPool jedisPool : jedisPools) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                String cursor = "0";
+                String pattern = ACCOUNT_PREFIX + "*";
+
+                do {
+                    ScanResult<String> scanResult = jedis.scan(cursor, new ScanParams().match(pattern));
+                    cursor = scanResult.getCursor();
+                    if (!scanResult.getResult().isEmpty()) {
+                        jedis.del(scanResult.getResult().toArray(new String[0]));
+                    }
+                } while (!cursor.equals("0"));
+
+                log.info("Deleted all accounts.");
+            } catch (Exception e) {
+                log.error("Error deleting accounts: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static class SlotGroup {
+        private final int slot;
+        private final List<byte[]> packed;
+        private ByteBuffer buffer;
+        private ByteBuffer results;
+        private int count;
 
-            log.info("Deleted all accounts.");
-        } catch (Exception e) {
-            log.error("Error deleting accounts: {}", e.getMessage());
+        private SlotGroup(int slot, int bufferSize) {
+            this.slot = slot;
+            this.packed = new ArrayList<>(1);
+            this.buffer = ByteBuffer.allocate(bufferSize);
         }
     }
-}
\ No newline at end of file
+}
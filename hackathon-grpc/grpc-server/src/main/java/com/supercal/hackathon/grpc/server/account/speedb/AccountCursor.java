@@ -0,0 +1,78 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.Snapshot;
+
+import java.nio.ByteBuffer;
+
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.intToBytes;
+
+/**
+ * Accounts of one shard in a range of the unsigned key space as of a snapshot, in key order. Bypasses the block cache
+ * so a full scan does not evict the hot accounts, and reads keys and values into reused direct buffers.
+ */
+public class AccountCursor implements AutoCloseable {
+
+    private final Slice upperBound;
+    private final ReadOptions readOptions;
+    private final RocksIterator iterator;
+    private final ByteBuffer key;
+    private final ByteBuffer value;
+    private int accountId;
+    private int balance;
+    private boolean valid;
+
+    AccountCursor(RocksDB db, ColumnFamilyHandle handle, Snapshot snapshot, long from, long to) {
+        this.upperBound = to < SpeedbConnection.KEY_SPACE ? new Slice(intToBytes((int) to)) : null;
+        this.readOptions = new ReadOptions().setSnapshot(snapshot).setFillCache(false);
+        if (upperBound != null) {
+            readOptions.setIterateUpperBound(upperBound);
+        }
+        this.iterator = db.newIterator(handle, readOptions);
+        this.key = ByteBuffer.allocateDirect(Integer.BYTES);
+        this.value = ByteBuffer.allocateDirect(AccountValue.SIZE);
+
+        iterator.seek(intToBytes((int) from));
+        read();
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public int accountId() {
+        return accountId;
+    }
+
+    public int balance() {
+        return balance;
+    }
+
+    public void next() {
+        iterator.next();
+        read();
+    }
+
+    private void read() {
+        valid = iterator.isValid();
+        if (valid) {
+            iterator.key(key.clear());
+            iterator.value(value.clear());
+            accountId = key.getInt(0);
+            balance = AccountValue.decode(value);
+        }
+    }
+
+    @Override
+    public void close() {
+        iterator.close();
+        readOptions.close();
+        if (upperBound != null) {
+            upperBound.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+/**
+ * Account ids stored in a shard, as bitmap pages of 64K ids allocated on first use, so dense id ranges cost one bit
+ * per account. Not thread-safe, the owning connection must serialize access.
+ */
+public class AccountIndex {
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final Int2ObjectOpenHashMap<long[]> pages;
+    private long size;
+
+    public AccountIndex() {
+        this.pages = new Int2ObjectOpenHashMap<>();
+    }
+
+    public boolean contains(int accountId) {
+        long[] page = pages.get(accountId >>> PAGE_SHIFT);
+        return page != null && (page[(accountId & PAGE_MASK) >>> 6] & (1L << accountId)) != 0;
+    }
+
+    public void add(int accountId) {
+        long[] page = pages.computeIfAbsent(accountId >>> PAGE_SHIFT, k -> new long[(PAGE_MASK + 1) >>> 6]);
+        int word = (accountId & PAGE_MASK) >>> 6;
+        if ((page[word] & (1L << accountId)) == 0) {
+            page[word] |= 1L << accountId;
+            size++;
+        }
+    }
+
+    public void remove(int accountId) {
+        long[] page = pages.get(accountId >>> PAGE_SHIFT);
+        int word = (accountId & PAGE_MASK) >>> 6;
+        if (page != null && (page[word] & (1L << accountId)) != 0) {
+            page[word] &= ~(1L << accountId);
+            size--;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+}
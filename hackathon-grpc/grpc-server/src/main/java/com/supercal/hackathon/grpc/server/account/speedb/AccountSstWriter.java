@@ -0,0 +1,64 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import org.rocksdb.CompressionType;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.SstFileWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes account balances into an external SST file for {@code ingestExternalFile}.
+ * Accounts must be added in ascending unsigned order, the key order of the accounts column family.
+ */
+public class AccountSstWriter implements AutoCloseable {
+
+    private final String path;
+    private final EnvOptions envOptions;
+    private final Options options;
+    private final SstFileWriter writer;
+    private final ByteBuffer keyBuffer;
+    private final ByteBuffer valueBuffer;
+    private long count;
+
+    public AccountSstWriter(String path) throws RocksDBException {
+        this.path = path;
+        this.envOptions = new EnvOptions();
+        this.options = new Options().setCompressionType(CompressionType.NO_COMPRESSION);
+        this.writer = new SstFileWriter(envOptions, options);
+        this.keyBuffer = ByteBuffer.allocateDirect(Integer.BYTES);
+        this.valueBuffer = ByteBuffer.allocateDirect(AccountValue.SIZE);
+
+        writer.open(path);
+    }
+
+    public void put(int accountId, int balance) throws RocksDBException {
+        keyBuffer.clear().putInt(accountId).flip();
+        valueBuffer.clear();
+        AccountValue.put(valueBuffer, balance);
+        writer.put(keyBuffer, valueBuffer.flip());
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // Returns the finished file, or null when nothing was written since an empty SST cannot be finished
+    public String finish() throws RocksDBException {
+        if (count == 0) {
+            return null;
+        }
+
+        writer.finish();
+        return path;
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+        options.close();
+        envOptions.close();
+    }
+}
@@ -0,0 +1,48 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stored form of an account balance: a 64-bit little-endian integer, the operand format of the {@code uint64add}
+ * merge operator, so credits can be merged into a balance without reading it.
+ */
+public final class AccountValue {
+
+    public static final int SIZE = Long.BYTES;
+
+    // Present in the default column family once every balance uses this format, older stores hold 4-byte big-endian ints
+    public static final byte[] FORMAT_KEY = "account-format".getBytes(StandardCharsets.UTF_8);
+    public static final byte[] FORMAT = {2};
+
+    private AccountValue() { }
+
+    public static byte[] encode(long value) {
+        byte[] bytes = new byte[SIZE];
+        encode(bytes, value);
+        return bytes;
+    }
+
+    public static void encode(byte[] bytes, long value) {
+        for (int i = 0; i < SIZE; i++) {
+            bytes[i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    public static void put(ByteBuffer buffer, long value) {
+        buffer.putLong(Long.reverseBytes(value));
+    }
+
+    // Merged credits wrap like int arithmetic, the balance is the low 32 bits
+    public static int decode(byte[] bytes) {
+        long value = 0;
+        for (int i = 0; i < SIZE; i++) {
+            value |= (bytes[i] & 0xFFL) << (i * 8);
+        }
+        return (int) value;
+    }
+
+    public static int decode(ByteBuffer buffer) {
+        return (int) Long.reverseBytes(buffer.getLong(0));
+    }
+}
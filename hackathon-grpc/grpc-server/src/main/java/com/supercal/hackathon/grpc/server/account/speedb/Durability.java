@@ -0,0 +1,38 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import org.rocksdb.WriteOptions;
+
+public enum Durability {
+    // Memtable only, lost on process crash
+    NONE("none"),
+    // WAL written to the OS page cache, survives a process crash but not a power loss
+    WAL_ASYNC("wal-async"),
+    // WAL fsynced once per commit group
+    WAL_FSYNC("wal-fsync");
+
+    private final String name;
+
+    Durability(String name) {
+        this.name = name;
+    }
+
+    public void apply(WriteOptions writeOptions) {
+        writeOptions.setDisableWAL(this == NONE);
+        writeOptions.setSync(this == WAL_FSYNC);
+    }
+
+    public static Durability fromName(String name) {
+        for (Durability durability : values()) {
+            if (durability.name.equalsIgnoreCase(name)) {
+                return durability;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported speedb.durability=" + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
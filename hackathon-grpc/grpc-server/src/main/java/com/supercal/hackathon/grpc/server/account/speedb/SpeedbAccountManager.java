@@ -1,40 +1,92 @@
 package com.supercal.hackathon.grpc.server.account.speedb;
 
+import com.supercal.hackathon.grpc.proto.AccountProvision;
+import com.supercal.hackathon.grpc.proto.AccountProvisionRequest;
+import com.supercal.hackathon.grpc.proto.AccountProvisionResponse;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
+import com.supercal.hackathon.grpc.commons.account.AccountSnapshot;
 import com.supercal.hackathon.grpc.server.GrpcServerConfig;
 import com.supercal.hackathon.grpc.server.account.AccountManager;
 import io.grpc.stub.StreamObserver;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import lombok.extern.slf4j.Slf4j;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.Snapshot;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.respond;
+
 @Slf4j
 public class SpeedbAccountManager implements AccountManager {
 
     private final GrpcServerConfig config;
     private final Map<Integer, SpeedbConnection> dbMap;
+    private final SpeedbMemory memory;
+    private final SpeedbBackpressure backpressure;
+    private final ScheduledExecutorService expiryExecutor;
+    private final ExecutorService responseExecutor;
+
+    // Submitting batches holds the read lock, a resharding cut-over switches the routing under the write lock
+    private final ReentrantReadWriteLock routingLock;
+    private final boolean freshRouting;
+    private final Thread resharder;
+    private volatile SpeedbRouting routing;
 
-    public SpeedbAccountManager(GrpcServerConfig config) {
+    public SpeedbAccountManager(GrpcServerConfig config) throws IOException {
         this.config = config;
         this.dbMap = new ConcurrentHashMap<>();
+        this.memory = new SpeedbMemory(config);
+        this.backpressure = new SpeedbBackpressure(config);
+        this.responseExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.routingLock = new ReentrantReadWriteLock();
+
+        // Without a routing table the shard directories were laid out as accountId % shards
+        this.routing = SpeedbRouting.load(SpeedbRouting.PATH);
+        this.freshRouting = routing == null;
+        if (freshRouting) {
+            int existing = 0;
+            while (new File("db" + existing).isDirectory()) {
+                existing++;
+            }
+            this.routing = SpeedbRouting.initial(config.getRouteBuckets(), existing > 0 ? existing : config.getShards());
+            routing.save(SpeedbRouting.PATH);
+        }
+        if (config.getShards() < routing.getShards()) {
+            log.warn("Removing shards is not supported :: configured={}, routed={}", config.getShards(), routing.getShards());
+        }
+        // An interrupted resharding resumes with at least the shards it was started for
+        int shards = Math.max(Math.max(config.getShards(), routing.getShards()), routing.getTargetShards());
 
+        log.info("Storage profiles :: accounts={} {}, txns={} {}", StorageProfile.fromName(config.getProfileAccounts()),
+                StorageProfile.fromName(config.getProfileAccounts()).getAccounts(), StorageProfile.fromName(config.getProfileTxns()),
+                StorageProfile.fromName(config.getProfileTxns()).getTxns());
         log.info("Opening database...");
-        List<CompletableFuture<Void>> futures = IntStream.range(0, config.getShards()).mapToObj(i -> CompletableFuture.runAsync(() -> {
+        // One pool loads the caches of all shards, sized to the cores rather than per shard
+        ExecutorService loader = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<CompletableFuture<Void>> futures = IntStream.range(0, shards).mapToObj(i -> CompletableFuture.runAsync(() -> {
             SpeedbConnection conn;
             try {
-                conn = new SpeedbConnection(config, i);
+                conn = new SpeedbConnection(config, i, memory, backpressure, loader);
                 dbMap.put(i, conn);
                 log.info("Opened new Speedb connection :: shard={}", i);
             } catch (RocksDBException e) {
@@ -43,12 +95,39 @@ public class SpeedbAccountManager implements AccountManager {
             }
         })).toList();
 
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            loader.shutdown();
+        }
         log.info("db size={}", dbMap.size());
+
+        // Drop expired transaction buckets
+        this.expiryExecutor = Executors.newSingleThreadScheduledExecutor();
+        if (config.getTxnWindowSeconds() > 0) {
+            int period = Math.min(config.getTxnWindowBucketSeconds(), config.getTxnWindowSeconds());
+            expiryExecutor.scheduleAtFixedRate(() -> dbMap.values().forEach(SpeedbConnection::expireTransactions),
+                    0, period, TimeUnit.SECONDS);
+        }
+
+        // Follow the compaction backlog between stall notifications
+        expiryExecutor.scheduleAtFixedRate(() -> dbMap.values().forEach(SpeedbConnection::updatePressure),
+                0, Math.max(1, config.getBackpressurePollMs()), TimeUnit.MILLISECONDS);
+
+        // Added shards are filled in the background, also when moves or the purge of an earlier start are left
+        this.resharder = shards > routing.getShards() || routing.getTargetShards() > 0
+                ? Thread.ofPlatform().name("speedb-reshard").start(new SpeedbResharder(config, this, dbMap, shards))
+                : null;
+    }
+
+    @Override
+    public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) throws InterruptedException {
+        changeBalance(batch, observer, CompletableFuture.completedFuture(null)).join();
     }
 
     @Override
-    public void changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer) {
+    public CompletableFuture<Void> changeBalance(BalanceUpdateRequestBatch batch, StreamObserver<BalanceUpdateResponseBatch> observer,
+                                                 CompletableFuture<Void> previous) throws InterruptedException {
         log.debug("Received batch :: partition={}, batch={}", batch.getPartition(), batch.getBatchId());
 
         // Simulate errors
@@ -56,53 +135,263 @@ public class SpeedbAccountManager implements AccountManager {
             log.debug("Simulated error :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId());
 
             // Create simulated error
-            observer.onNext(BalanceUpdateResponseBatch.newBuilder()
-                    .setBatchError(true)
-                    .setPartition(batch.getPartition())
-                    .setBatchId(batch.getBatchId()).build());
+            return previous.thenRunAsync(() -> observer.onNext(toBatchError(batch)), responseExecutor);
+        }
 
-            return;
+        // Slow down before the shards stall, outside the routing lock so a cut-over is not held up
+        backpressure.admit(dbMap.values());
+
+        // Split requests into shard batches and queue them, the shards apply the next batch while this one commits
+        int shards = dbMap.size();
+        List<CompletableFuture<BalanceUpdateResponseBatch>> futures = new ArrayList<>(shards);
+        routingLock.readLock().lock();
+        try {
+            List<List<BalanceUpdateRequest>> requestsByShard = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                requestsByShard.add(new ArrayList<>(batch.getRequestCount() / shards + 1));
+            }
+            for (BalanceUpdateRequest request : batch.getRequestList()) {
+                requestsByShard.get(routing.shard(request.getAccountId())).add(request);
+            }
+
+            for (int i = 0; i < shards; i++) {
+                if (!requestsByShard.get(i).isEmpty()) {
+                    futures.add(dbMap.get(i).submit(requestsByShard.get(i)));
+                }
+            }
+        } finally {
+            routingLock.readLock().unlock();
         }
 
-        // Split requests into shard batches
-        Map<Integer, List<BalanceUpdateRequest>> requestMapByShard = batch.getRequestList().stream()
-                .collect(Collectors.groupingBy(r -> r.getAccountId() % dbMap.size()));
+        // Respond in batch order once every shard committed, the client retries the batch if a group commit failed
+        CompletableFuture<Throwable> committed = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, e) -> e);
+        return committed.thenCombineAsync(previous, (error, ignored) -> {
+            if (error != null) {
+                log.error("Failed batch :: partition={}, batchId={}", batch.getPartition(), batch.getBatchId(), error);
+                observer.onNext(toBatchError(batch));
+                return null;
+            }
+
+            if (config.isResponseCoalesce()) {
+                // Shard responses and completion in one message
+                BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+                futures.forEach(future -> builder.addAllResponse(future.join().getResponseList()));
+                respond(observer, batch, builder, true);
+            } else {
+                // Send shard responses
+                futures.forEach(future -> observer.onNext(future.join()));
+
+                // Return batch completed
+                observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchCompleted(true).setBatchId(batch.getBatchId()).build());
+            }
+            log.debug("Completed batch :: partition={}, batch={}", batch.getPartition(), batch.getBatchId());
+            return null;
+        }, responseExecutor);
+    }
 
-        // Process shard batches
-        requestMapByShard.forEach((key, value) -> dbMap.get(key).changeBalance(observer, value));
+    @Override
+    public boolean isPipelined() {
+        return true;
+    }
 
-        // Return batch completed
-        observer.onNext(BalanceUpdateResponseBatch.newBuilder().setBatchCompleted(true).setBatchId(batch.getBatchId()).build());
-        log.debug("Completed batch :: partition={}, batch={}", batch.getPartition(), batch.getBatchId());
+    private static BalanceUpdateResponseBatch toBatchError(BalanceUpdateRequestBatch batch) {
+        return BalanceUpdateResponseBatch.newBuilder()
+                .setBatchError(true)
+                .setPartition(batch.getPartition())
+                .setBatchId(batch.getBatchId()).build();
     }
 
     @Override
     public Int2IntOpenHashMap getAccounts() {
         Int2IntOpenHashMap accountMap = new Int2IntOpenHashMap();
-        dbMap.values().forEach(conn -> accountMap.putAll(conn.getAccounts()));
+        SpeedbRouting current = routing;
+
+        // Skip copies that a running or interrupted resharding left on other shards
+        dbMap.forEach((shard, conn) -> Int2IntMaps.fastForEach(conn.getAccounts(), entry -> {
+            if (current.shard(entry.getIntKey()) == shard) {
+                accountMap.put(entry.getIntKey(), entry.getIntValue());
+            }
+        }));
 
         return accountMap;
     }
 
     @Override
-    public void createAccounts(int numAccounts, int balance) throws RocksDBException {
-        Map<Integer, List<Integer>> accountMap = new HashMap<>(numAccounts);
-
-        // Split accounts for the shards
-        for (int i = 0; i < numAccounts; i++) {
-            int shard = i % dbMap.size();
-            List<Integer> accounts = accountMap.computeIfAbsent(shard, s -> new ArrayList<>());
-            accounts.add(i);
+    public long exportSnapshot(Path path) throws Exception {
+        // A batch is queued on all its shards or on none while the snapshots are queued, so they form one cut
+        Map<Integer, CompletableFuture<Snapshot>> futures = new HashMap<>();
+        SpeedbRouting cut;
+        routingLock.writeLock().lock();
+        try {
+            cut = routing;
+            for (Map.Entry<Integer, SpeedbConnection> entry : dbMap.entrySet()) {
+                futures.put(entry.getKey(), entry.getValue().takeSnapshot());
+            }
+        } finally {
+            routingLock.writeLock().unlock();
+        }
+
+        Map<Integer, Snapshot> snapshots = new HashMap<>();
+        try {
+            futures.forEach((shard, future) -> snapshots.put(shard, future.join()));
+
+            // Key ranges up to the highest account are exported in parallel, each merging the shards in key order
+            long keyEnd = 0;
+            for (Map.Entry<Integer, Snapshot> entry : snapshots.entrySet()) {
+                keyEnd = Math.max(keyEnd, dbMap.get(entry.getKey()).getKeyEnd(entry.getValue()));
+            }
+            long end = keyEnd;
+            int ranges = Runtime.getRuntime().availableProcessors();
+            long start = System.currentTimeMillis();
+            long count = AccountSnapshot.write(path, ranges, (range, sink) -> exportRange(
+                    snapshots, cut, end * range / ranges, end * (range + 1) / ranges, sink));
+
+            log.info("Exported account snapshot :: path={}, accounts={}, time={}ms", path, count, System.currentTimeMillis() - start);
+            return count;
+        } finally {
+            snapshots.forEach((shard, snapshot) -> dbMap.get(shard).releaseSnapshot(snapshot));
+        }
+    }
+
+    private void exportRange(Map<Integer, Snapshot> snapshots, SpeedbRouting cut, long from, long to, AccountSnapshot.Sink sink) throws Exception {
+        List<AccountCursor> cursors = new ArrayList<>(snapshots.size());
+        List<Integer> shards = new ArrayList<>(snapshots.size());
+        try {
+            snapshots.forEach((shard, snapshot) -> {
+                cursors.add(dbMap.get(shard).openCursor(snapshot, from, to));
+                shards.add(shard);
+            });
+
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < cursors.size(); i++) {
+                    if (cursors.get(i).isValid()
+                            && (next < 0 || Integer.compareUnsigned(cursors.get(i).accountId(), cursors.get(next).accountId()) < 0)) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    return;
+                }
+
+                // Skip copies that a running or interrupted resharding left on other shards
+                AccountCursor cursor = cursors.get(next);
+                if (cut.shard(cursor.accountId()) == shards.get(next)) {
+                    sink.accept(cursor.accountId(), cursor.balance());
+                }
+                cursor.next();
+            }
+        } finally {
+            cursors.forEach(AccountCursor::close);
+        }
+    }
+
+    @Override
+    public void createAccounts(int numAccounts, int balance) {
+        // Shards added later are filled by resharding
+        if (!freshRouting) {
+            log.info("routing table already exists :: shards={}", routing.getShards());
+            return;
+        }
+
+        // Every shard writes and ingests its own SST file
+        List<CompletableFuture<Void>> futures = dbMap.values().stream().map(conn -> CompletableFuture.runAsync(() -> {
+            try {
+                conn.createAccounts(numAccounts, routing, balance);
+            } catch (RocksDBException e) {
+                log.error("Failed to create accounts", e);
+                throw new RuntimeException(e);
+            }
+        })).toList();
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    @Override
+    public AccountProvisionResponse provisionAccounts(AccountProvisionRequest request) throws InterruptedException {
+        // Split accounts into shards, repeated accounts add up
+        int shards = dbMap.size();
+        List<CompletableFuture<AccountProvisionResponse>> futures = new ArrayList<>(shards);
+        routingLock.readLock().lock();
+        try {
+            List<Int2IntOpenHashMap> amountsByShard = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                amountsByShard.add(new Int2IntOpenHashMap(request.getAccountCount() / shards + 1));
+            }
+            for (AccountProvision account : request.getAccountList()) {
+                // Amounts are uint32, balances int32
+                Int2IntOpenHashMap amounts = amountsByShard.get(routing.shard(account.getAccountId()));
+                if ((long) amounts.get(account.getAccountId()) + Integer.toUnsignedLong(account.getAmount()) > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Amount exceeds the maximum balance :: accountId="
+                            + Integer.toUnsignedString(account.getAccountId()));
+                }
+                amounts.addTo(account.getAccountId(), account.getAmount());
+            }
+
+            for (int i = 0; i < shards; i++) {
+                if (!amountsByShard.get(i).isEmpty()) {
+                    futures.add(dbMap.get(i).provisionAccounts(amountsByShard.get(i)));
+                }
+            }
+        } finally {
+            routingLock.readLock().unlock();
         }
 
-        // Create accounts
-        for (Map.Entry<Integer, List<Integer>> entry : accountMap.entrySet()) {
-            dbMap.get(entry.getKey()).createAccounts(entry.getValue(), balance);
+        AccountProvisionResponse.Builder builder = AccountProvisionResponse.newBuilder();
+        for (CompletableFuture<AccountProvisionResponse> future : futures) {
+            AccountProvisionResponse response;
+            try {
+                response = future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IllegalArgumentException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+            builder.setCreated(builder.getCreated() + response.getCreated()).setToppedUp(builder.getToppedUp() + response.getToppedUp());
         }
+
+        return builder.build();
+    }
+
+    SpeedbRouting getRouting() {
+        return routing;
+    }
+
+    void setRouting(SpeedbRouting routing) {
+        this.routing = routing;
+    }
+
+    ReentrantReadWriteLock getRoutingLock() {
+        return routingLock;
     }
 
     @Override
     public void shutdown() {
+        // An interrupted resharding resumes with the next start
+        if (resharder != null) {
+            resharder.interrupt();
+            try {
+                resharder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        expiryExecutor.shutdownNow();
+        try {
+            expiryExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         dbMap.values().forEach(SpeedbConnection::shutdown);
+        responseExecutor.close();
+
+        // Shared cache outlives every shard
+        log.info("Speedb memory :: {}", memory.getStats());
+        log.info("Speedb backpressure :: {}", backpressure.getStats());
+        memory.close();
+        backpressure.close();
     }
 }
@@ -0,0 +1,90 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.RateLimiterMode;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide guard against write stalls. Flushes and compactions of all shards share one rate limiter, and batch
+ * admission slows down as the shards report pressure, so throughput degrades gradually before RocksDB stops writes.
+ * Pressure is 1 when a shard is at its slowdown triggers or delayed, {@link #STOPPED} when writes are stopped.
+ */
+@Slf4j
+public class SpeedbBackpressure implements AutoCloseable {
+
+    public static final double STOPPED = 2;
+    private static final long MB = 1024 * 1024;
+
+    @Getter
+    private final RateLimiter rateLimiter;
+    private final double start;
+    private final long maxDelayNanos;
+    private final long stopWaitNanos;
+
+    // Stats
+    private final LongAdder delayedBatches;
+    private final LongAdder delayNanos;
+
+    public SpeedbBackpressure(GrpcServerConfig config) {
+        // Auto-tuned up to the configured rate, flushes go ahead of compactions
+        long bytesPerSecond = config.getCompactionRateMb() * MB;
+        this.rateLimiter = bytesPerSecond > 0
+                ? new RateLimiter(bytesPerSecond, RateLimiter.DEFAULT_REFILL_PERIOD_MICROS, RateLimiter.DEFAULT_FAIRNESS, RateLimiterMode.WRITES_ONLY, true)
+                : null;
+        this.start = Math.clamp(config.getBackpressureStart(), 0.0, 1.0);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getBackpressureMaxDelayMs());
+        this.stopWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getBackpressureStopWaitMs());
+        this.delayedBatches = new LongAdder();
+        this.delayNanos = new LongAdder();
+
+        log.info("Speedb backpressure :: compactionRate={}MB/s, start={}, maxDelay={}ms, stopWait={}ms",
+                config.getCompactionRateMb(), start, config.getBackpressureMaxDelayMs(), config.getBackpressureStopWaitMs());
+    }
+
+    // Delays the caller in proportion to the highest shard pressure, while writes are stopped up to the stop wait
+    public void admit(Collection<SpeedbConnection> shards) throws InterruptedException {
+        double pressure = getPressure(shards);
+        if (pressure < start || maxDelayNanos <= 0) {
+            return;
+        }
+
+        long begin = System.nanoTime();
+        if (pressure < 1) {
+            TimeUnit.NANOSECONDS.sleep((long) (maxDelayNanos * (pressure - start) / (1 - start)));
+        } else {
+            TimeUnit.NANOSECONDS.sleep(maxDelayNanos);
+            while (getPressure(shards) >= STOPPED && System.nanoTime() - begin < stopWaitNanos) {
+                TimeUnit.NANOSECONDS.sleep(maxDelayNanos);
+            }
+        }
+
+        delayedBatches.increment();
+        delayNanos.add(System.nanoTime() - begin);
+    }
+
+    private static double getPressure(Collection<SpeedbConnection> shards) {
+        double pressure = 0;
+        for (SpeedbConnection shard : shards) {
+            pressure = Math.max(pressure, shard.getPressure());
+        }
+        return pressure;
+    }
+
+    public String getStats() {
+        return String.format("delayedBatches=%d, delay=%dms, compactionBytes=%dMB", delayedBatches.sum(),
+                TimeUnit.NANOSECONDS.toMillis(delayNanos.sum()), rateLimiter != null ? rateLimiter.getTotalBytesThrough() / MB : 0);
+    }
+
+    @Override
+    public void close() {
+        if (rateLimiter != null) {
+            rateLimiter.close();
+        }
+    }
+}
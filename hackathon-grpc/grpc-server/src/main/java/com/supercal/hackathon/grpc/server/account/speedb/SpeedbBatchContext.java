@@ -0,0 +1,225 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import com.supercal.hackathon.grpc.server.account.AccountCache;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.ByteBufferGetStatus;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Status;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reusable per-shard state for one commit group of {@link SpeedbConnection}.
+ * Not thread-safe, the owning connection must serialize access.
+ */
+@Slf4j
+public class SpeedbBatchContext implements AutoCloseable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Batch state
+    final LongOpenHashSet txnIdsToAdd;
+    final LongOpenHashSet duplicateTxnIds;
+    final Int2IntOpenHashMap accounts;
+    final Int2IntOpenHashMap credits;
+
+    // Native write state
+    final WriteBatch writeBatch;
+    final WriteOptions writeOptions;
+
+    // Direct buffers for multiGet and put
+    private final Slab txnSlab;
+    private final Slab accountSlab;
+    private final ByteBuffer keyBuffer;
+    private final ByteBuffer valueBuffer;
+    private final byte[] mergeKey;
+    private final byte[] mergeValue;
+    private final List<ColumnFamilyHandle> txnHandles;
+    private final List<ColumnFamilyHandle> accountHandles;
+
+    public SpeedbBatchContext(ColumnFamilyHandle accountsHandle, ColumnFamilyHandle txnHandle, Durability durability) {
+        this.txnIdsToAdd = new LongOpenHashSet(INITIAL_CAPACITY);
+        this.duplicateTxnIds = new LongOpenHashSet(INITIAL_CAPACITY);
+        this.accounts = new Int2IntOpenHashMap(INITIAL_CAPACITY);
+        this.accounts.defaultReturnValue(AccountCache.defaultReturnValue);
+        this.credits = new Int2IntOpenHashMap(INITIAL_CAPACITY);
+
+        this.writeBatch = new WriteBatch();
+        this.writeOptions = new WriteOptions();
+        durability.apply(writeOptions);
+
+        this.txnSlab = new Slab(Long.BYTES, 1);
+        this.accountSlab = new Slab(Integer.BYTES, AccountValue.SIZE);
+        this.keyBuffer = ByteBuffer.allocateDirect(Long.BYTES);
+        this.valueBuffer = ByteBuffer.allocateDirect(AccountValue.SIZE);
+        this.mergeKey = new byte[Integer.BYTES];
+        this.mergeValue = new byte[AccountValue.SIZE];
+        this.txnHandles = List.of(txnHandle);
+        this.accountHandles = List.of(accountsHandle);
+    }
+
+    // Start of a commit group
+    public void reset() {
+        txnIdsToAdd.clear();
+        accounts.clear();
+        credits.clear();
+        writeBatch.clear();
+        resetLookups();
+    }
+
+    // Start of a sub-batch inside the group, balances and pending transactions are kept
+    public void resetLookups() {
+        duplicateTxnIds.clear();
+        txnSlab.clear();
+        accountSlab.clear();
+    }
+
+    public void addTxnKey(long txnId) {
+        txnSlab.next().putLong(0, txnId);
+    }
+
+    public void addAccountKey(int accountId) {
+        accountSlab.next().putInt(0, accountId);
+    }
+
+    public int getTxnKeyCount() {
+        return txnSlab.size;
+    }
+
+    public int multiGetTxns(RocksDB db) throws RocksDBException {
+        if (txnSlab.size == 0) {
+            return 0;
+        }
+
+        int found = 0;
+        List<ByteBufferGetStatus> results = db.multiGetByteBuffers(txnHandles, txnSlab.keyList, txnSlab.valueList);
+        for (int i = 0; i < results.size(); i++) {
+            if (isFound(results.get(i))) {
+                duplicateTxnIds.add(txnSlab.keyList.get(i).getLong(0));
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    public void multiGetAccounts(RocksDB db) throws RocksDBException {
+        if (accountSlab.size == 0) {
+            return;
+        }
+
+        List<ByteBufferGetStatus> results = db.multiGetByteBuffers(accountHandles, accountSlab.keyList, accountSlab.valueList);
+        for (int i = 0; i < results.size(); i++) {
+            ByteBufferGetStatus result = results.get(i);
+            int accountId = accountSlab.keyList.get(i).getInt(0);
+            if (isFound(result)) {
+                // Credits merged earlier in the group are not in storage yet, the balance takes them over
+                accounts.put(accountId, AccountValue.decode(result.value) + credits.remove(accountId));
+            } else {
+                accounts.remove(accountId);
+            }
+        }
+    }
+
+    public void putAccount(ColumnFamilyHandle handle, int accountId, int balance) throws RocksDBException {
+        keyBuffer.clear().putInt(accountId).flip();
+        valueBuffer.clear();
+        AccountValue.put(valueBuffer, balance);
+        writeBatch.put(handle, keyBuffer, valueBuffer.flip());
+    }
+
+    // Adds the amount to the stored balance without reading it, the batch has no direct buffer merge so the arrays are reused
+    public void mergeAccount(ColumnFamilyHandle handle, int accountId, int amount) throws RocksDBException {
+        mergeKey[0] = (byte) (accountId >>> 24);
+        mergeKey[1] = (byte) (accountId >>> 16);
+        mergeKey[2] = (byte) (accountId >>> 8);
+        mergeKey[3] = (byte) accountId;
+        AccountValue.encode(mergeValue, amount);
+        writeBatch.merge(handle, mergeKey, mergeValue);
+    }
+
+    public void putTxn(ColumnFamilyHandle handle, long txnId) throws RocksDBException {
+        keyBuffer.clear().putLong(txnId).flip();
+        valueBuffer.clear().put((byte) 1).flip();
+        writeBatch.put(handle, keyBuffer, valueBuffer);
+    }
+
+    @Override
+    public void close() {
+        writeBatch.close();
+        writeOptions.close();
+    }
+
+    private static boolean isFound(ByteBufferGetStatus result) throws RocksDBException {
+        Status.Code code = result.status.getCode();
+        if (code == Status.Code.Ok) {
+            return true;
+        } else if (code == Status.Code.NotFound) {
+            return false;
+        }
+
+        throw new RocksDBException(result.status);
+    }
+
+    // Direct key/value slab sliced into fixed size entries, grows when a batch is bigger than any seen before
+    private static class Slab {
+        private final int keySize;
+        private final int valueSize;
+        private final ObjectArrayList<ByteBuffer> keySlices;
+        private final ObjectArrayList<ByteBuffer> valueSlices;
+        private final ObjectArrayList<ByteBuffer> keyList;
+        private final ObjectArrayList<ByteBuffer> valueList;
+        private int size;
+
+        private Slab(int keySize, int valueSize) {
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.keySlices = new ObjectArrayList<>();
+            this.valueSlices = new ObjectArrayList<>();
+            this.keyList = new ObjectArrayList<>();
+            this.valueList = new ObjectArrayList<>();
+            grow(INITIAL_CAPACITY);
+        }
+
+        private ByteBuffer next() {
+            if (size == keySlices.size()) {
+                grow(keySlices.size() * 2);
+            }
+
+            ByteBuffer key = keySlices.get(size);
+            ByteBuffer value = valueSlices.get(size).clear();
+            keyList.add(key);
+            valueList.add(value);
+            size++;
+
+            return key;
+        }
+
+        private void clear() {
+            keyList.clear();
+            valueList.clear();
+            size = 0;
+        }
+
+        private void grow(int capacity) {
+            int start = keySlices.size();
+            int count = capacity - start;
+            log.debug("Growing slab :: keySize={}, capacity={}", keySize, capacity);
+
+            ByteBuffer keys = ByteBuffer.allocateDirect(count * keySize);
+            ByteBuffer values = ByteBuffer.allocateDirect(count * valueSize);
+            for (int i = 0; i < count; i++) {
+                keySlices.add(keys.slice(i * keySize, keySize));
+                valueSlices.add(values.slice(i * valueSize, valueSize));
+            }
+        }
+    }
+}
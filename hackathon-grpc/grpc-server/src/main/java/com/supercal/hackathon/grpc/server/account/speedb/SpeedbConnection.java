@@ -1,47 +1,69 @@
 package com.supercal.hackathon.grpc.server.account.speedb;
 
+import com.supercal.hackathon.grpc.proto.AccountProvisionResponse;
 import com.supercal.hackathon.grpc.proto.Action;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponse;
 import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
 import com.supercal.hackathon.grpc.server.GrpcServerConfig;
 import com.supercal.hackathon.grpc.server.account.AccountCache;
-import com.supercal.hackathon.grpc.server.account.AccountManagerUtil;
-import io.grpc.stub.StreamObserver;
+import com.supercal.hackathon.grpc.server.account.BalanceCache;
+import com.supercal.hackathon.grpc.server.account.OffHeapAccountCache;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
+import com.supercal.hackathon.grpc.server.account.WindowedTxnFilter;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMaps;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import lombok.extern.slf4j.Slf4j;
-import org.rocksdb.BlockBasedTableConfig;
-import org.rocksdb.BloomFilter;
+import org.rocksdb.AbstractEventListener;
 import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.ColumnFamilyOptions;
-import org.rocksdb.CompactionStyle;
-import org.rocksdb.CompressionType;
 import org.rocksdb.DBOptions;
+import org.rocksdb.IngestExternalFileOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.Snapshot;
+import org.rocksdb.Status;
+import org.rocksdb.UInt64AddOperator;
 import org.rocksdb.WALRecoveryMode;
+import org.rocksdb.WriteStallCondition;
+import org.rocksdb.WriteStallInfo;
 import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongConsumer;
 
 import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
 import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
 import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_FAILED;
 import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS;
 import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_SUCCESS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_TRANSACTION_EXPIRED;
 import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.bytesToInt;
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.bytesToLong;
 import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.intToBytes;
 import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.longToBytes;
 import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toResponse;
@@ -49,38 +71,77 @@ import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.toRe
 @Slf4j
 public class SpeedbConnection {
 
+    // Account keys are big-endian ints, so the key space is ordered as unsigned 32-bit
+    static final long KEY_SPACE = 1L << 32;
+
     private final GrpcServerConfig config;
     private final RocksDB db;
     private final ColumnFamilyHandle accountsHandle;
     private final ColumnFamilyHandle txnHandle;
-    private final AccountCache cache;
+    private final BalanceCache cache;
+    private final boolean cacheAuthoritative;
+    private final boolean mergeCredits;
+    private final AccountIndex accountIndex;
+    private final TxnWindow txnWindow;
+    private final WindowedTxnFilter txnFilter;
     private final int shard;
+    private final String dbPath;
+    private final List<SpeedbBatchContext> contexts;
+    private final BlockingQueue<ShardTask> writerQueue;
+    private final Thread writer;
+    private final Thread committer;
+    private volatile boolean running;
+
+    // Write stall state, conditions come from the listener and the backlog from polled properties
+    private final StallListener stallListener;
+    private final Map<String, WriteStallCondition> stallConditions;
+    private final StallLimits accountLimits;
+    private final StallLimits txnLimits;
+    private volatile double backlog;
+    private volatile double pressure;
+
+    // Apply stage state, owned by the writer thread
+    private final ArrayDeque<SpeedbBatchContext> freeContexts;
+    private final Int2IntOpenHashMap pendingBalances;
+    private final Int2IntOpenHashMap pendingRefs;
+    private final LongOpenHashSet pendingTxns;
+    private final Int2IntOpenHashMap pendingCredits;
+    private int inFlight;
+    private long epoch;
+
+    // Commit stage hand-off
+    private final BlockingQueue<CommitGroup> commitQueue;
+    private final BlockingQueue<CommitGroup> releaseQueue;
     private boolean dbExists;
+    private long expiredBucket;
+
+    // Resharding state, owned by the writer thread. Changes of the moving buckets after the copy snapshot.
+    private SpeedbRouting migrationRouting;
+    private boolean[] migrationBuckets;
+    private IntOpenHashSet dirtyAccounts;
+    private LongOpenHashSet dirtyTxns;
 
-    public SpeedbConnection(GrpcServerConfig config, int shard) throws RocksDBException {
+    // The loader pool is shared by the shards opening at the same time
+    public SpeedbConnection(GrpcServerConfig config, int shard, SpeedbMemory memory, SpeedbBackpressure backpressure,
+                            ExecutorService loader) throws RocksDBException {
         this.config = config;
-        this.cache = new AccountCache(config.getAccounts());
         this.shard = shard;
         this.dbExists = false;
 
-        ColumnFamilyOptions cfOptions = new ColumnFamilyOptions()
-                .setWriteBufferSize(512 * 1024 * 1024)
-                .setMaxWriteBufferNumber(8)
-                .setTargetFileSizeBase(512 * 1024 * 1024)
-                .setMaxBytesForLevelBase(1024 * 1024 * 1024)
-                .setMinWriteBufferNumberToMerge(2)
-                .setCompressionType(CompressionType.NO_COMPRESSION)
-                .setCompactionStyle(CompactionStyle.LEVEL)
-                .setTableFormatConfig(new BlockBasedTableConfig()
-                        .setBlockCacheSize(512 * 1024 * 1024)
-                        .setBlockSize(32 * 1024)
-                        .setFilterPolicy(new BloomFilter(10, false)))
-                .setLevelCompactionDynamicLevelBytes(true);
+        // Tuned per column family by the configured storage profiles
+        ColumnFamilyOptions accountOptions = StorageProfile.fromName(config.getProfileAccounts()).accountOptions(memory)
+                .setMergeOperator(new UInt64AddOperator());
+        ColumnFamilyOptions txnOptions = StorageProfile.fromName(config.getProfileTxns()).txnOptions(memory);
+        this.accountLimits = new StallLimits(accountOptions);
+        this.txnLimits = new StallLimits(txnOptions);
+        this.stallConditions = new ConcurrentHashMap<>();
+        this.stallListener = new StallListener();
 
+        // The default column family only holds markers
         List<ColumnFamilyDescriptor> cfDescriptors = new ArrayList<>();
-        cfDescriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOptions));
-        cfDescriptors.add(new ColumnFamilyDescriptor("accounts".getBytes(StandardCharsets.UTF_8), cfOptions));
-        cfDescriptors.add(new ColumnFamilyDescriptor("txns".getBytes(StandardCharsets.UTF_8), cfOptions));
+        cfDescriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, txnOptions));
+        cfDescriptors.add(new ColumnFamilyDescriptor("accounts".getBytes(StandardCharsets.UTF_8), accountOptions));
+        cfDescriptors.add(new ColumnFamilyDescriptor("txns".getBytes(StandardCharsets.UTF_8), txnOptions));
         List<ColumnFamilyHandle> cfHandles = new ArrayList<>();
 
         DBOptions dbOptions = new DBOptions()
@@ -98,115 +159,343 @@ public class SpeedbConnection {
                 .setWalRecoveryMode(WALRecoveryMode.SkipAnyCorruptedRecords)
                 .setSkipStatsUpdateOnDbOpen(true)
                 .setSkipCheckingSstFileSizesOnDbOpen(true)
-                .setMaxOpenFiles(-1);
+                .setWriteBufferManager(memory.getWriteBufferManager())
+                .setMaxOpenFiles(-1)
+                .setBytesPerSync(1024 * 1024)
+                .setListeners(List.of(stallListener));
+
+        // Flushes and compactions of every shard share one rate
+        if (backpressure.getRateLimiter() != null) {
+            dbOptions.setRateLimiter(backpressure.getRateLimiter());
+        }
 
         // Check if database directory exists and contains RocksDB files
-        String dbPath = "db" + shard;
+        this.dbPath = "db" + shard;
         File dbDir = new File(dbPath);
         this.dbExists = dbDir.exists() && dbDir.isDirectory();
 
         this.db = RocksDB.open(dbOptions, dbPath, cfDescriptors, cfHandles);
         this.accountsHandle = cfHandles.get(1);
         this.txnHandle = cfHandles.get(2);
+        upgradeAccountFormat();
+        logColumnFamilyStats("accounts", accountsHandle);
+        logColumnFamilyStats("txns", txnHandle);
+        this.contexts = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, config.getPipelineDepth()); i++) {
+            contexts.add(new SpeedbBatchContext(accountsHandle, txnHandle, Durability.fromName(config.getDurability())));
+        }
+        // Bounded cache keeps the hot accounts off-heap, cold accounts come from multiGet
+        long cacheCapacity = config.getCacheCapacity() / Math.max(1, config.getShards());
+        this.cache = cacheCapacity > 0 ? new OffHeapAccountCache(cacheCapacity) : new AccountCache(getExpectedAccounts());
+        this.cacheAuthoritative = config.isCacheAuthoritative() && !cache.isBounded();
+        if (config.isCacheAuthoritative() && cache.isBounded()) {
+            log.warn("Bounded account cache cannot be authoritative :: shard={}", shard);
+        }
+
+        // Load all accounts so the cache can serve every read
+        if (cacheAuthoritative) {
+            loadCache(loader);
+        }
+
+        // Credits of accounts without a balance at hand are merged blindly, the index tells which accounts exist
+        this.mergeCredits = config.isMergeCredits() && !cacheAuthoritative;
+        this.accountIndex = mergeCredits ? loadAccountIndex() : null;
+
+        // Rebuild duplicate transaction filter
+        this.txnWindow = new TxnWindow(config.getTxnWindowSeconds() * 1000L, config.getTxnWindowBucketSeconds() * 1000L);
+        this.expiredBucket = Long.MIN_VALUE;
+        this.txnFilter = config.isTxnFilter() ? new WindowedTxnFilter(txnWindow, config.getTxnFilterCapacity(), config.getTxnFilterBitsPerKey()) : null;
+        if (txnFilter != null) {
+            loadTxnFilter();
+        }
+
+        // Groups applied but not yet committed stay visible to the groups after them
+        this.freeContexts = new ArrayDeque<>(contexts);
+        this.pendingBalances = new Int2IntOpenHashMap();
+        this.pendingRefs = new Int2IntOpenHashMap();
+        this.pendingTxns = new LongOpenHashSet();
+        this.pendingCredits = new Int2IntOpenHashMap();
+        this.commitQueue = new LinkedBlockingQueue<>();
+        this.releaseQueue = new LinkedBlockingQueue<>();
+
+        // Writer applies groups and owns the cache and filter of this shard, committer writes them in order
+        this.writerQueue = new ArrayBlockingQueue<>(config.getShardQueueSize());
+        this.running = true;
+        this.committer = Thread.ofPlatform().name("speedb-shard-" + shard + "-commit").start(this::runCommitter);
+        this.writer = Thread.ofPlatform().name("speedb-shard-" + shard).start(this::runWriter);
     }
 
-    public void changeBalance(StreamObserver<BalanceUpdateResponseBatch> observer, List<BalanceUpdateRequest> requests) {
-        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+    public CompletableFuture<BalanceUpdateResponseBatch> submit(List<BalanceUpdateRequest> requests) throws InterruptedException {
+        CompletableFuture<BalanceUpdateResponseBatch> future = new CompletableFuture<>();
 
-        try (WriteBatch writeBatch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
-            // Set WAL
-            if(!config.isWal()) {
-                writeOptions.disableWAL();
-            }
-
-            // Set to track transaction IDs that we plan to record in this batch.
-            Set<Long> txnIdsToAdd = new HashSet<>();
-
-            // Collect transaction Ids and accountIds
-            List<Long> txnIds = new ArrayList<>(requests.size());
-            List<byte[]> txnKeys = new ArrayList<>(requests.size());
-            List<Integer> accountIds = new ArrayList<>();
-            requests.forEach(r -> {
-                txnIds.add(r.getTransactionId());
-                txnKeys.add(longToBytes(r.getTransactionId()));
-                accountIds.add(r.getAccountId());
-            });
-
-            // Get duplicate transactions
-            Map<Long, byte[]> duplicateTransactions = getDuplicateTransactions(txnIds, txnKeys);
-
-            // Get accounts
-            Map<Integer, Integer> accounts = getAccounts(accountIds);
-
-            // Process each request in order.
-            for (BalanceUpdateRequest request : requests) {
-                try  {
-                    // Check persistent storage or existing batch for a duplicate transaction.
-                    if (txnIdsToAdd.contains(request.getTransactionId()) || duplicateTransactions.containsKey(request.getTransactionId())) {
-                        BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_DUPLICATE_TRANSACTION);
-                        builder.addResponse(response);
-                        continue;
-                    }
+        // Blocks the caller when the shard is behind
+        writerQueue.put(new ShardTask(requests, future, null));
 
-                    // Get current balance for the account.
-                    Integer accountBalance = accounts.get(request.getAccountId());
-                    if (accountBalance == null) {
-                        BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_ACCOUNT_NOT_FOUND);
-                        builder.addResponse(response);
-                        continue;
-                    }
+        return future;
+    }
 
-                    // Process deposit or withdrawal.
-                    if (request.getAction() == Action.ACTION_CREDIT) {
-                        accounts.put(request.getAccountId(), accountBalance + request.getAmount());
-                    } else if (request.getAction() == Action.ACTION_DEBIT) {
-                        if (accountBalance < request.getAmount()) {
-                            BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_INSUFFICIENT_FUNDS, accountBalance);
-                            builder.addResponse(response);
-                            continue;
-                        }
-                        accounts.put(request.getAccountId(), accountBalance - request.getAmount());
-                    } else {
-                        BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_FAILED, accountBalance);
-                        builder.addResponse(response);
-                        continue;
-                    }
+    // Applies all balance tasks of a group and hands the write batch to the commit stage
+    private void applyGroup(List<ShardTask> group) throws InterruptedException {
+        if (group.isEmpty()) {
+            return;
+        }
 
-                    // Update the in-memory balance.
-                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_SUCCESS, accounts.get(request.getAccountId()));
-                    builder.addResponse(response);
+        SpeedbBatchContext ctx = acquireContext();
+        List<BalanceUpdateResponseBatch> responses = new ArrayList<>(group.size());
 
-                    // Mark this transaction ID to be recorded.
-                    txnIdsToAdd.add(request.getTransactionId());
-                } catch (Exception e) {
-                    log.error("Error processing request", e);
-                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_FAILED);
-                    builder.addResponse(response);
-                }
+        try {
+            ctx.reset();
+            long now = System.currentTimeMillis();
+
+            for (ShardTask task : group) {
+                responses.add(changeBalance(ctx, task.requests(), now));
             }
 
             // Add all account balance updates to the WriteBatch.
-            for (Map.Entry<Integer, Integer> entry : accounts.entrySet()) {
-                byte[] accountKey = intToBytes(entry.getKey());
-                byte[] balanceBytes = intToBytes(entry.getValue());
-                writeBatch.put(accountsHandle, accountKey, balanceBytes);
+            for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(ctx.accounts)) {
+                ctx.putAccount(accountsHandle, entry.getIntKey(), entry.getIntValue());
+            }
+
+            // Blind credits are folded into the balances by the merge operator
+            for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(ctx.credits)) {
+                ctx.mergeAccount(accountsHandle, entry.getIntKey(), entry.getIntValue());
             }
 
             // Add all processed transaction IDs to the WriteBatch.
-            for (long txnId : txnIdsToAdd) {
-                byte[] transactionIdKey = longToBytes(txnId);
-                byte[] transactionIdValue = new byte[]{1};
-                writeBatch.put(txnHandle, transactionIdKey, transactionIdValue);
+            LongIterator txnIterator = ctx.txnIdsToAdd.iterator();
+            while (txnIterator.hasNext()) {
+                ctx.putTxn(txnHandle, txnIterator.nextLong());
             }
+        } catch (Exception e) {
+            log.error("Error processing batch group :: shard={}, batches={}", shard, group.size(), e);
+            group.forEach(task -> task.future().completeExceptionally(e));
+            freeContexts.push(ctx);
+            return;
+        }
 
-            // Write the entire batch atomically.
-            db.write(writeOptions, writeBatch);
-            cache.putAll(accounts);
-        } catch (RocksDBException e) {
-            log.error("Error processing batch", e);
+        // Publish the group to later groups until the committer releases it
+        for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(ctx.accounts)) {
+            pendingBalances.put(entry.getIntKey(), entry.getIntValue());
+            pendingRefs.addTo(entry.getIntKey(), 1);
+        }
+        ctx.credits.keySet().forEach(accountId -> pendingCredits.addTo(accountId, 1));
+        pendingTxns.addAll(ctx.txnIdsToAdd);
+
+        inFlight++;
+        commitQueue.put(new CommitGroup(ctx, List.copyOf(group), responses, epoch));
+    }
+
+    // Commit stage, writes groups in apply order
+    private void runCommitter() {
+        long failedEpoch = -1;
+        Exception failure = null;
+
+        while (true) {
+            CommitGroup group;
+            try {
+                group = commitQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (group.ctx == null) {
+                return;
+            }
+
+            // Groups applied on top of a failed group are failed as well
+            if (group.epoch <= failedEpoch) {
+                fail(group, failure);
+                continue;
+            }
+
+            try {
+                // Write the entire group atomically, with one WAL sync for wal-fsync.
+                db.write(group.ctx.writeOptions, group.ctx.writeBatch);
+            } catch (Exception e) {
+                log.error("Error committing batch group :: shard={}, batches={}", shard, group.tasks.size(), e);
+                failedEpoch = group.epoch;
+                failure = e;
+                fail(group, e);
+                continue;
+            }
+
+            // Release responses now that the group reached the configured durability
+            for (int i = 0; i < group.tasks.size(); i++) {
+                group.tasks.get(i).future().complete(group.responses.get(i));
+            }
+            releaseQueue.add(group);
+        }
+    }
+
+    private void fail(CommitGroup group, Exception e) {
+        group.failed = true;
+        group.tasks.forEach(task -> task.future().completeExceptionally(e));
+        releaseQueue.add(group);
+    }
+
+    // Moves a committed group from the pending state into the cache and filter
+    private void release(CommitGroup group) {
+        SpeedbBatchContext ctx = group.ctx;
+        inFlight--;
+
+        try {
+            // Already dropped by an earlier failure
+            if (group.epoch != epoch) {
+                return;
+            }
+
+            // Later groups were applied on top of this one, start over from storage
+            if (group.failed) {
+                epoch++;
+                pendingBalances.clear();
+                pendingRefs.clear();
+                pendingTxns.clear();
+                pendingCredits.clear();
+                return;
+            }
+
+            for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(ctx.accounts)) {
+                if (pendingRefs.addTo(entry.getIntKey(), -1) == 1) {
+                    pendingRefs.remove(entry.getIntKey());
+                    pendingBalances.remove(entry.getIntKey());
+                }
+            }
+            for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(ctx.credits)) {
+                if (pendingCredits.addTo(entry.getIntKey(), -1) == 1) {
+                    pendingCredits.remove(entry.getIntKey());
+                }
+            }
+            cache.putAll(ctx.accounts);
+            trackMigration(ctx.accounts, ctx.txnIdsToAdd);
+            trackMigration(ctx.credits, null);
+
+            // Add committed transaction IDs to the filter
+            LongIterator txnIterator = ctx.txnIdsToAdd.iterator();
+            while (txnIterator.hasNext()) {
+                long txnId = txnIterator.nextLong();
+                pendingTxns.remove(txnId);
+                if (txnFilter != null) {
+                    txnFilter.put(txnId);
+                }
+            }
+        } finally {
+            freeContexts.push(ctx);
+        }
+    }
+
+    private void releaseCommitted() {
+        CommitGroup group;
+        while ((group = releaseQueue.poll()) != null) {
+            release(group);
+        }
+    }
+
+    private SpeedbBatchContext acquireContext() throws InterruptedException {
+        releaseCommitted();
+        while (freeContexts.isEmpty()) {
+            release(releaseQueue.take());
+        }
+
+        return freeContexts.pop();
+    }
+
+    // Waits until every applied group is committed, actions see the committed state
+    private void awaitCommitted() throws InterruptedException {
+        while (inFlight > 0) {
+            release(releaseQueue.take());
+        }
+    }
+
+    private BalanceUpdateResponseBatch changeBalance(SpeedbBatchContext ctx, List<BalanceUpdateRequest> requests, long now) throws RocksDBException, InterruptedException {
+        BalanceUpdateResponseBatch.Builder builder = BalanceUpdateResponseBatch.newBuilder();
+        ctx.resetLookups();
+
+        // Collect transaction Ids and accountIds
+        for (BalanceUpdateRequest request : requests) {
+            collectTxn(ctx, request.getTransactionId(), now);
+            if (mergeCredits && request.getAction() == Action.ACTION_CREDIT) {
+                // Credits cannot fail on funds, they only use a balance already at hand
+                collectKnownAccount(ctx, request.getAccountId());
+            } else {
+                awaitCredits(request.getAccountId());
+                collectAccount(ctx, request.getAccountId());
+            }
+        }
+
+        // Get duplicate transactions
+        int found = ctx.multiGetTxns(db);
+        if (txnFilter != null) {
+            txnFilter.recordFalsePositives(ctx.getTxnKeyCount() - found);
+        }
+
+        // Get accounts
+        ctx.multiGetAccounts(db);
+
+        // Process each request in order.
+        for (BalanceUpdateRequest request : requests) {
+            try  {
+                // Reject transactions older than the dedupe window, their records may already be gone.
+                if (txnWindow.isExpired(request.getTransactionId(), now)) {
+                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_TRANSACTION_EXPIRED);
+                    builder.addResponse(response);
+                    continue;
+                }
+
+                // Check persistent storage or existing batch for a duplicate transaction.
+                if (ctx.txnIdsToAdd.contains(request.getTransactionId()) || pendingTxns.contains(request.getTransactionId())
+                        || ctx.duplicateTxnIds.contains(request.getTransactionId())) {
+                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_DUPLICATE_TRANSACTION);
+                    builder.addResponse(response);
+                    continue;
+                }
+
+                // Get current balance for the account.
+                int accountBalance = ctx.accounts.get(request.getAccountId());
+                if (accountBalance == AccountCache.defaultReturnValue && isBlindCredit(ctx, request)) {
+                    // The new balance is unknown without a read, the response carries none
+                    ctx.credits.addTo(request.getAccountId(), request.getAmount());
+                    builder.addResponse(toResponse(request, OPERATION_STATUS_SUCCESS));
+                    ctx.txnIdsToAdd.add(request.getTransactionId());
+                    continue;
+                }
+
+                if (accountBalance == AccountCache.defaultReturnValue) {
+                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_ACCOUNT_NOT_FOUND);
+                    builder.addResponse(response);
+                    continue;
+                }
+
+                // Process deposit or withdrawal.
+                if (request.getAction() == Action.ACTION_CREDIT) {
+                    ctx.accounts.put(request.getAccountId(), accountBalance + request.getAmount());
+                } else if (request.getAction() == Action.ACTION_DEBIT) {
+                    if (accountBalance < request.getAmount()) {
+                        BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_INSUFFICIENT_FUNDS, accountBalance);
+                        builder.addResponse(response);
+                        continue;
+                    }
+                    ctx.accounts.put(request.getAccountId(), accountBalance - request.getAmount());
+                } else {
+                    BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_FAILED, accountBalance);
+                    builder.addResponse(response);
+                    continue;
+                }
+
+                // Update the in-memory balance.
+                BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_SUCCESS, ctx.accounts.get(request.getAccountId()));
+                builder.addResponse(response);
+
+                // Mark this transaction ID to be recorded.
+                ctx.txnIdsToAdd.add(request.getTransactionId());
+            } catch (Exception e) {
+                log.error("Error processing request", e);
+                BalanceUpdateResponse response = toResponse(request, OPERATION_STATUS_FAILED);
+                builder.addResponse(response);
+            }
         }
 
-        observer.onNext(builder.build());
+        return builder.build();
     }
 
     public Int2IntOpenHashMap getAccounts() {
@@ -215,7 +504,7 @@ public class SpeedbConnection {
         try (RocksIterator iterator = db.newIterator(accountsHandle)) {
             for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
                 int accountId = bytesToInt(iterator.key());
-                int balance = bytesToInt(iterator.value());
+                int balance = AccountValue.decode(iterator.value());
 
                 accountMap.put(accountId, balance);
             }
@@ -225,76 +514,828 @@ public class SpeedbConnection {
         return accountMap;
     }
 
-    public void createAccounts(List<Integer> accounts, int balance) throws RocksDBException {
-        log.info("createAccounts :: shard={}, count={}", shard, accounts.size());
-
+    public void createAccounts(int numAccounts, SpeedbRouting routing, int balance) throws RocksDBException {
         if(dbExists) {
             log.info("database already exists :: shard={}", shard);
             return;
         }
 
-        try (WriteBatch writeBatch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions().setSync(false)) {
-            for (int accountId : accounts) {
-                byte[] key = intToBytes(accountId);
-                byte[] value = intToBytes(balance);
-                writeBatch.put(accountsHandle, key, value);
+        long start = System.currentTimeMillis();
+        long count;
+
+        // Account ids of a shard ascend, so they stream straight into a sorted SST file
+        try (AccountSstWriter writer = new AccountSstWriter(newIngestPath())) {
+            for (int accountId = 0; accountId < numAccounts; accountId++) {
+                if (routing.shard(accountId) == shard) {
+                    writer.put(accountId, balance);
+                    if (accountIndex != null) {
+                        accountIndex.add(accountId);
+                    }
+                }
+            }
+
+            count = writer.getCount();
+            if (!ingest(writer.finish())) {
+                throw new RocksDBException("New database holds accounts :: shard=" + shard);
+            }
+        }
+
+        if (cacheAuthoritative) {
+            for (int accountId = 0; accountId < numAccounts; accountId++) {
+                if (routing.shard(accountId) == shard) {
+                    cache.put(accountId, balance);
+                }
+            }
+        }
+
+        log.info("createAccounts :: shard={}, count={}, time={}ms", shard, count, System.currentTimeMillis() - start);
+    }
+
+    public CompletableFuture<AccountProvisionResponse> provisionAccounts(Int2IntMap amounts) throws InterruptedException {
+        int[] accountIds = amounts.keySet().toIntArray();
+        IntArrays.quickSort(accountIds, Integer::compareUnsigned);
+
+        // Chunks let balance groups of this shard run between provisioning writes
+        int chunkSize = Math.max(1, config.getProvisionChunkSize());
+        List<CompletableFuture<AccountProvisionResponse>> futures = new ArrayList<>();
+        for (int from = 0; from < accountIds.length; from += chunkSize) {
+            int[] chunk = Arrays.copyOfRange(accountIds, from, Math.min(from + chunkSize, accountIds.length));
+            CompletableFuture<AccountProvisionResponse> future = new CompletableFuture<>();
+            writerQueue.put(new ShardTask(null, null, () -> provisionChunk(chunk, amounts, future)));
+            futures.add(future);
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            AccountProvisionResponse.Builder builder = AccountProvisionResponse.newBuilder();
+            for (CompletableFuture<AccountProvisionResponse> future : futures) {
+                AccountProvisionResponse response = future.join();
+                builder.setCreated(builder.getCreated() + response.getCreated()).setToppedUp(builder.getToppedUp() + response.getToppedUp());
+            }
+            return builder.build();
+        });
+    }
+
+    // Runs on the writer thread with nothing in flight, so balances cannot change between the read and the write.
+    // A chunk with top-ups is written like a balance group, only a chunk of new accounts may go in as an SST file
+    private void provisionChunk(int[] accountIds, Int2IntMap amounts, CompletableFuture<AccountProvisionResponse> future) {
+        SpeedbBatchContext ctx = freeContexts.peek();
+        int[] balances = new int[accountIds.length];
+        long created = 0;
+        long toppedUp = 0;
+
+        try {
+            ctx.reset();
+            for (int accountId : accountIds) {
+                collectAccount(ctx, accountId);
+            }
+            ctx.multiGetAccounts(db);
+
+            for (int i = 0; i < accountIds.length; i++) {
+                int balance = ctx.accounts.get(accountIds[i]);
+                int amount = amounts.get(accountIds[i]);
+                if (balance == AccountCache.defaultReturnValue) {
+                    balances[i] = amount;
+                    created++;
+                } else if ((long) balance + amount > Integer.MAX_VALUE) {
+                    // Nothing of the chunk is written, earlier chunks stay applied
+                    future.completeExceptionally(new IllegalArgumentException(
+                            "Top-up exceeds the maximum balance :: accountId=" + Integer.toUnsignedString(accountIds[i])));
+                    return;
+                } else {
+                    balances[i] = balance + amount;
+                    toppedUp++;
+                }
+            }
+
+            writeAccounts(ctx, accountIds, balances, accountIds.length, ctx.writeOptions, toppedUp == 0);
+
+            for (int i = 0; i < accountIds.length; i++) {
+                if (accountIndex != null) {
+                    accountIndex.add(accountIds[i]);
+                }
+                ctx.accounts.put(accountIds[i], balances[i]);
+            }
+            cache.putAll(ctx.accounts);
+            trackMigration(ctx.accounts, null);
+        } catch (Exception e) {
+            log.error("Error provisioning accounts :: shard={}, count={}", shard, accountIds.length, e);
+            future.completeExceptionally(e);
+            return;
+        }
+
+        future.complete(AccountProvisionResponse.newBuilder().setCreated(created).setToppedUp(toppedUp).build());
+    }
+
+    // Writes accounts in ascending order on the writer thread. A bulk load is tried as an SST file, which is only
+    // ingested when no memtable holds keys of its range, otherwise and for the rest the accounts go in a write batch.
+    // The writer never waits on a memtable flush and overlapping files do not pile up in L0.
+    private void writeAccounts(SpeedbBatchContext ctx, int[] accountIds, int[] balances, int count, WriteOptions writeOptions,
+                               boolean bulk) throws RocksDBException {
+        if (bulk) {
+            try (AccountSstWriter writer = new AccountSstWriter(newIngestPath())) {
+                for (int i = 0; i < count; i++) {
+                    writer.put(accountIds[i], balances[i]);
+                }
+                if (ingest(writer.finish())) {
+                    return;
+                }
             }
+        }
 
-            db.write(writeOptions, writeBatch);
+        ctx.writeBatch.clear();
+        for (int i = 0; i < count; i++) {
+            ctx.putAccount(accountsHandle, accountIds[i], balances[i]);
         }
+        db.write(writeOptions, ctx.writeBatch);
+        ctx.writeBatch.clear();
+    }
+
+    // Starts tracking changes of the moving buckets, returns a snapshot of the committed state to copy from
+    public CompletableFuture<Snapshot> startMigration(SpeedbRouting routing, boolean[] buckets) throws InterruptedException {
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> {
+            migrationRouting = routing;
+            migrationBuckets = buckets;
+            dirtyAccounts = new IntOpenHashSet();
+            dirtyTxns = new LongOpenHashSet();
+            future.complete(db.getSnapshot());
+        }));
+
+        return future;
+    }
+
+    // Stops tracking and returns the balances and transactions committed since the snapshot
+    public CompletableFuture<MigrationDelta> finishMigration() throws InterruptedException {
+        CompletableFuture<MigrationDelta> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> {
+            try {
+                SpeedbBatchContext ctx = freeContexts.peek();
+                ctx.reset();
+                dirtyAccounts.forEach(accountId -> collectAccount(ctx, accountId));
+                ctx.multiGetAccounts(db);
+
+                // Sorted like the key space, the target ingests them as one SST file
+                int[] accountIds = ctx.accounts.keySet().toIntArray();
+                IntArrays.quickSort(accountIds, Integer::compareUnsigned);
+                int[] balances = new int[accountIds.length];
+                for (int i = 0; i < accountIds.length; i++) {
+                    balances[i] = ctx.accounts.get(accountIds[i]);
+                }
+
+                future.complete(new MigrationDelta(accountIds, balances, dirtyTxns.toLongArray()));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                migrationRouting = null;
+                migrationBuckets = null;
+                dirtyAccounts = null;
+                dirtyTxns = null;
+            }
+        }));
+
+        return future;
+    }
+
+    // Snapshot once every batch queued before is committed, later batches keep committing while it is read
+    public CompletableFuture<Snapshot> takeSnapshot() throws InterruptedException {
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> future.complete(db.getSnapshot())));
+
+        return future;
+    }
+
+    public void releaseSnapshot(Snapshot snapshot) {
+        db.releaseSnapshot(snapshot);
+    }
+
+    // End of the used unsigned key space as of the snapshot, 0 without accounts
+    public long getKeyEnd(Snapshot snapshot) {
+        try (ReadOptions readOptions = new ReadOptions().setSnapshot(snapshot).setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions)) {
+            iterator.seekToLast();
+            return iterator.isValid() ? Integer.toUnsignedLong(bytesToInt(iterator.key())) + 1 : 0;
+        }
+    }
+
+    // Accounts in [from, to) of the unsigned key space as of the snapshot, runs on the caller thread
+    public AccountCursor openCursor(Snapshot snapshot, long from, long to) {
+        return new AccountCursor(db, accountsHandle, snapshot, from, to);
+    }
+
+    // Streams the accounts of the buckets as of the snapshot in key order, runs on the caller thread
+    public void exportAccounts(Snapshot snapshot, SpeedbRouting routing, boolean[] buckets, int chunkSize, AccountChunkConsumer consumer) throws Exception {
+        int[] accountIds = new int[chunkSize];
+        int[] balances = new int[chunkSize];
+        int count = 0;
+
+        try (ReadOptions readOptions = new ReadOptions().setSnapshot(snapshot).setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                int accountId = bytesToInt(iterator.key());
+                if (!buckets[routing.bucket(accountId)]) {
+                    continue;
+                }
+
+                accountIds[count] = accountId;
+                balances[count] = AccountValue.decode(iterator.value());
+                if (++count == chunkSize) {
+                    consumer.accept(accountIds, balances, count);
+                    count = 0;
+                }
+            }
+        }
+
+        if (count > 0) {
+            consumer.accept(accountIds, balances, count);
+        }
+    }
+
+    // Streams the transactions inside the dedupe window as of the snapshot, runs on the caller thread
+    public void exportTxns(Snapshot snapshot, int chunkSize, TxnChunkConsumer consumer) throws Exception {
+        long[] txnIds = new long[chunkSize];
+        int count = 0;
+
+        try (ReadOptions readOptions = new ReadOptions().setSnapshot(snapshot).setFillCache(false);
+             RocksIterator iterator = db.newIterator(txnHandle, readOptions)) {
+            iterator.seek(longToBytes(txnWindow.isEnabled() ? TxnWindow.toTxnId(System.currentTimeMillis() - txnWindow.getWindowMillis()) : 0));
+            for (; iterator.isValid(); iterator.next()) {
+                txnIds[count] = bytesToLong(iterator.key());
+                if (++count == chunkSize) {
+                    consumer.accept(txnIds, count);
+                    count = 0;
+                }
+            }
+        }
+
+        if (count > 0) {
+            consumer.accept(txnIds, count);
+        }
+    }
+
+    // Account ids must ascend as unsigned ints, the accounts are not routed here yet
+    public CompletableFuture<Void> importAccounts(int[] accountIds, int[] balances, int count) throws InterruptedException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> {
+            SpeedbBatchContext ctx = freeContexts.peek();
+            ctx.reset();
+
+            // Logged whatever the durability, the synced cut-over makes the copy durable before the routing switches
+            try (WriteOptions writeOptions = new WriteOptions()) {
+                writeAccounts(ctx, accountIds, balances, count, writeOptions, true);
+                for (int i = 0; i < count; i++) {
+                    cache.put(accountIds[i], balances[i]);
+                    if (accountIndex != null) {
+                        accountIndex.add(accountIds[i]);
+                    }
+                }
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }));
+
+        return future;
+    }
+
+    public CompletableFuture<Void> importTxns(long[] txnIds, int count) throws InterruptedException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> {
+            SpeedbBatchContext ctx = freeContexts.peek();
+            ctx.reset();
+
+            // Synced, the routing switch must not get ahead of the copied transactions
+            try (WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+                for (int i = 0; i < count; i++) {
+                    ctx.putTxn(txnHandle, txnIds[i]);
+                    if (txnFilter != null) {
+                        txnFilter.put(txnIds[i]);
+                    }
+                }
+                db.write(writeOptions, ctx.writeBatch);
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }));
+
+        return future;
+    }
+
+    // Changes made during the bulk copy, written at the cut-over in one synced batch so the hold stays at a memtable write
+    public CompletableFuture<Void> importDelta(MigrationDelta delta) throws InterruptedException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        writerQueue.put(new ShardTask(null, null, () -> {
+            SpeedbBatchContext ctx = freeContexts.peek();
+            ctx.reset();
+
+            // Also syncs the log of the bulk copy, the routing switch must not get ahead of it
+            try (WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+                for (int i = 0; i < delta.accountIds().length; i++) {
+                    ctx.putAccount(accountsHandle, delta.accountIds()[i], delta.balances()[i]);
+                }
+                for (long txnId : delta.txnIds()) {
+                    ctx.putTxn(txnHandle, txnId);
+                }
+                db.write(writeOptions, ctx.writeBatch);
+
+                for (int i = 0; i < delta.accountIds().length; i++) {
+                    cache.put(delta.accountIds()[i], delta.balances()[i]);
+                    if (accountIndex != null) {
+                        accountIndex.add(delta.accountIds()[i]);
+                    }
+                }
+                if (txnFilter != null) {
+                    for (long txnId : delta.txnIds()) {
+                        txnFilter.put(txnId);
+                    }
+                }
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }));
+
+        return future;
+    }
+
+    // Deletes the accounts routed to other shards after resharding, runs on the caller thread, the writer evicts them
+    public long purge(SpeedbRouting routing, int chunkSize, LongConsumer throttle) throws RocksDBException, InterruptedException {
+        long purged = 0;
+        int[] accountIds = new int[chunkSize];
+
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions);
+             WriteBatch batch = new WriteBatch();
+             WriteOptions writeOptions = new WriteOptions()) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                int accountId = bytesToInt(iterator.key());
+                if (routing.shard(accountId) == shard) {
+                    continue;
+                }
+
+                batch.delete(accountsHandle, iterator.key());
+                accountIds[batch.count() - 1] = accountId;
+                if (batch.count() == chunkSize) {
+                    db.write(writeOptions, batch);
+                    evict(accountIds, batch.count());
+                    purged += batch.count();
+                    throttle.accept((long) batch.count() * Integer.BYTES);
+                    batch.clear();
+                    accountIds = new int[chunkSize];
+                }
+            }
+
+            purged += batch.count();
+            db.write(writeOptions, batch);
+            evict(accountIds, batch.count());
+        }
+
+        return purged;
+    }
+
+    private void evict(int[] accountIds, int count) throws InterruptedException {
+        writerQueue.put(new ShardTask(null, null, () -> {
+            for (int i = 0; i < count; i++) {
+                cache.remove(accountIds[i]);
+                if (accountIndex != null) {
+                    accountIndex.remove(accountIds[i]);
+                }
+            }
+        }));
+    }
+
+    private void trackMigration(Int2IntMap accounts, LongOpenHashSet txnIds) {
+        if (migrationBuckets == null) {
+            return;
+        }
+
+        for (Int2IntMap.Entry entry : Int2IntMaps.fastIterable(accounts)) {
+            if (migrationBuckets[migrationRouting.bucket(entry.getIntKey())]) {
+                dirtyAccounts.add(entry.getIntKey());
+            }
+        }
+
+        // Transactions are not keyed by account, the target gets all of them
+        if (txnIds != null) {
+            dirtyTxns.addAll(txnIds);
+        }
+    }
+
+    // Returns false without ingesting when a memtable holds keys of the file's range, ingesting would flush it first
+    private boolean ingest(String path) throws RocksDBException {
+        if (path == null) {
+            return true;
+        }
+
+        // Moved files are hard linked into the db, the leftover is removed either way
+        try (IngestExternalFileOptions options = new IngestExternalFileOptions().setMoveFiles(true).setAllowBlockingFlush(false)) {
+            db.ingestExternalFile(accountsHandle, List.of(path), options);
+            return true;
+        } catch (RocksDBException e) {
+            if (e.getStatus() != null && e.getStatus().getCode() == Status.Code.InvalidArgument) {
+                log.debug("Ingestion needs a flush :: shard={}, status={}", shard, e.getStatus().getState());
+                return false;
+            }
+            throw e;
+        } finally {
+            new File(path).delete();
+        }
+    }
+
+    private String newIngestPath() {
+        File ingestDir = new File(dbPath + "-ingest");
+        ingestDir.mkdirs();
+
+        return new File(ingestDir, "accounts-" + System.nanoTime() + ".sst").getPath();
+    }
+
+    public double getPressure() {
+        return pressure;
+    }
+
+    // Polled, how far the column families are towards their slowdown triggers
+    public void updatePressure() {
+        try {
+            backlog = Math.max(getBacklog(accountsHandle, accountLimits), getBacklog(txnHandle, txnLimits));
+        } catch (RocksDBException e) {
+            log.warn("Failed to read write stall properties :: shard={}", shard, e);
+        }
+        refreshPressure();
+    }
+
+    private double getBacklog(ColumnFamilyHandle handle, StallLimits limits) throws RocksDBException {
+        double pendingBytes = db.getLongProperty(handle, "rocksdb.estimate-pending-compaction-bytes") / (double) limits.pendingBytes();
+        double level0Files = Long.parseLong(db.getProperty(handle, "rocksdb.num-files-at-level0")) / (double) limits.level0Files();
+        double memtables = db.getLongProperty(handle, "rocksdb.num-immutable-mem-table") / (double) limits.immutableMemtables();
+
+        return Math.max(pendingBytes, Math.max(level0Files, memtables));
+    }
+
+    private void refreshPressure() {
+        double current = backlog;
+        for (WriteStallCondition condition : stallConditions.values()) {
+            if (condition == WriteStallCondition.STOPPED) {
+                current = Math.max(current, SpeedbBackpressure.STOPPED);
+            } else if (condition == WriteStallCondition.DELAYED) {
+                current = Math.max(current, 1);
+            }
+        }
+        pressure = current;
+    }
+
+    public void expireTransactions() {
+        long cutoffBucket = txnWindow.getCutoffBucket(System.currentTimeMillis());
+        if (cutoffBucket <= expiredBucket) {
+            return;
+        }
+
+        // Transactions are keyed by TSID, so all expired buckets form one key range
+        byte[] from = longToBytes(0);
+        byte[] to = longToBytes(txnWindow.getBucketStartTxnId(cutoffBucket));
+
+        try {
+            db.deleteFilesInRanges(txnHandle, List.of(from, to), false);
+            db.deleteRange(txnHandle, from, to);
+            expiredBucket = cutoffBucket;
+        } catch (RocksDBException e) {
+            log.error("Failed to expire transactions :: shard={}", shard, e);
+            return;
+        }
+
+        // The filter is owned by the writer thread
+        if (txnFilter != null) {
+            try {
+                writerQueue.put(new ShardTask(null, null, () -> txnFilter.expire(cutoffBucket)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        log.debug("Expired transactions :: shard={}, cutoffBucket={}", shard, cutoffBucket);
     }
 
     public void shutdown() {
+        // Let the writer drain its queue, it stops the committer once everything is committed
+        try {
+            writerQueue.put(new ShardTask(null, null, () -> running = false));
+            writer.join();
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (txnFilter != null) {
+            log.info("Txn filter :: shard={}, {}", shard, txnFilter.getStats());
+        }
+        log.info("Account cache :: shard={}, {}", shard, cache.getStats());
+
+        contexts.forEach(SpeedbBatchContext::close);
         db.close();
+        stallListener.close();
     }
 
-    private Map<Integer, Integer> getAccounts(List<Integer> accountIds) throws RocksDBException {
-        Map<Integer, Integer> accounts = new Int2IntOpenHashMap(accountIds.size());
-        List<Integer> notCachedAccounts = new ArrayList<>();
+    private void runWriter() {
+        int groupCommitMax = Math.max(1, config.getGroupCommitMax());
+        List<ShardTask> tasks = new ArrayList<>(groupCommitMax);
+        List<ShardTask> group = new ArrayList<>(groupCommitMax);
 
-        // Fetch accounts
-        for (int accountId : accountIds) {
-            int balance = cache.get(accountId);
+        while (running) {
+            int next = 0;
+            try {
+                // Take everything that arrived while the previous group was applied
+                tasks.add(writerQueue.take());
+                writerQueue.drainTo(tasks, groupCommitMax - 1);
 
-            if (balance != AccountCache.defaultReturnValue) {
-                accounts.put(accountId, balance);
-            } else {
-                notCachedAccounts.add(accountId);
+                while (next < tasks.size()) {
+                    ShardTask task = tasks.get(next++);
+                    if (task.action() == null) {
+                        group.add(task);
+                    } else {
+                        applyGroup(group);
+                        group.clear();
+                        awaitCommitted();
+                        runAction(task.action());
+                    }
+                }
+
+                applyGroup(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // Batches not handed to the commit stage would never be answered otherwise, the remaining actions
+                // still run so their callers and a shutdown are not lost
+                log.error("Shard writer error :: shard={}", shard, e);
+                group.forEach(task -> task.future().completeExceptionally(e));
+                for (ShardTask task : tasks.subList(next, tasks.size())) {
+                    if (task.action() == null) {
+                        task.future().completeExceptionally(e);
+                    } else {
+                        runAction(task.action());
+                    }
+                }
+            } finally {
+                tasks.clear();
+                group.clear();
             }
         }
 
-        // Create account keys
-        List<byte[]> accountKeys = notCachedAccounts.stream()
-                .map(AccountManagerUtil::intToBytes)
-                .collect(Collectors.toList());
+        commitQueue.add(new CommitGroup(null, List.of(), List.of(), epoch));
+    }
+
+    // A failing action must not take the batches queued behind it down
+    private void runAction(Runnable action) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            log.error("Shard action error :: shard={}", shard, e);
+        }
+    }
 
-        // Get accounts from db
-        List<ColumnFamilyHandle> accountHandles = Collections.nCopies(accountKeys.size(), accountsHandle);
-        List<byte[]> accountValues = db.multiGetAsList(accountHandles, accountKeys);
+    private void collectTxn(SpeedbBatchContext ctx, long txnId, long now) {
+        if (txnWindow.isExpired(txnId, now) || pendingTxns.contains(txnId)) {
+            return;
+        }
 
-        for (int i = 0; i < notCachedAccounts.size(); i++) {
-            int accountId = notCachedAccounts.get(i);
-            byte[] value = accountValues.get(i);
-            accounts.put(accountId, (value != null) ? bytesToInt(value) : 0);
+        // Only ask storage when the filter has possibly seen the transaction
+        if (txnFilter == null || txnFilter.mightContain(txnId)) {
+            ctx.addTxnKey(txnId);
         }
+    }
 
-        return accounts;
+    private void collectAccount(SpeedbBatchContext ctx, int accountId) {
+        // Otherwise schedule it for multiGet
+        if (!collectKnownAccount(ctx, accountId) && !cacheAuthoritative) {
+            ctx.accounts.put(accountId, AccountCache.defaultReturnValue);
+            ctx.addAccountKey(accountId);
+        }
     }
 
-    private Map<Long, byte[]> getDuplicateTransactions(List<Long> txnIds, List<byte[]> txnKeys) throws RocksDBException {
-        // Collect duplicate transactions
-        Long2ObjectOpenHashMap<byte[]> duplicateTransactions = new Long2ObjectOpenHashMap<>(txnIds.size());
+    // Takes the balance from the group, the pending groups or the cache, returns false when none has it
+    private boolean collectKnownAccount(SpeedbBatchContext ctx, int accountId) {
+        if (ctx.accounts.containsKey(accountId)) {
+            return true;
+        }
+
+        // Balance of a group still being committed
+        if (pendingBalances.containsKey(accountId)) {
+            ctx.accounts.put(accountId, pendingBalances.get(accountId));
+            return true;
+        }
+
+        int balance = cache.get(accountId);
+        if (balance != AccountCache.defaultReturnValue) {
+            ctx.accounts.put(accountId, balance);
+            return true;
+        }
+
+        return false;
+    }
 
-        // Batch read for existing transactions
-        List<ColumnFamilyHandle> txnHandles = Collections.nCopies(txnKeys.size(), txnHandle);
-        List<byte[]> existingValues = db.multiGetAsList(txnHandles, txnKeys);
+    // Neither read nor found in this group, and the account exists
+    private boolean isBlindCredit(SpeedbBatchContext ctx, BalanceUpdateRequest request) {
+        return mergeCredits && request.getAction() == Action.ACTION_CREDIT
+                && !ctx.accounts.containsKey(request.getAccountId()) && accountIndex.contains(request.getAccountId());
+    }
 
-        for (int i = 0; i < txnIds.size(); i++) {
-            if (existingValues.get(i) != null) {
-                duplicateTransactions.put(txnIds.get(i), existingValues.get(i));
+    // A read would miss the credits of groups still being committed
+    private void awaitCredits(int accountId) throws InterruptedException {
+        while (pendingCredits.containsKey(accountId)) {
+            release(releaseQueue.take());
+        }
+    }
+
+    // Accounts owned by this shard, from storage when it exists, otherwise from the configured split
+    private int getExpectedAccounts() throws RocksDBException {
+        if (dbExists) {
+            return (int) Math.min(Integer.MAX_VALUE - 8, db.getLongProperty(accountsHandle, "rocksdb.estimate-num-keys"));
+        }
+
+        int shards = Math.max(1, config.getShards());
+        return Math.max(0, config.getAccounts() - shard + shards - 1) / shards;
+    }
+
+    private void loadCache(ExecutorService loader) throws RocksDBException {
+        long start = System.currentTimeMillis();
+
+        // Split only the used part of the key space, account ids are dense from 0
+        long keyStart;
+        long keyEnd;
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions)) {
+            iterator.seekToFirst();
+            keyStart = iterator.isValid() ? Integer.toUnsignedLong(bytesToInt(iterator.key())) : 0;
+            iterator.seekToLast();
+            keyEnd = iterator.isValid() ? Integer.toUnsignedLong(bytesToInt(iterator.key())) + 1 : 0;
+        }
+        int ranges = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), keyEnd - keyStart));
+        long rangeSize = (keyEnd - keyStart) / ranges;
+
+        // Scan the account key space in parallel ranges
+        try {
+            List<Future<Int2IntOpenHashMap>> futures = new ArrayList<>(ranges);
+            for (int i = 0; i < ranges; i++) {
+                long from = i == 0 ? 0 : keyStart + i * rangeSize;
+                long to = (i == ranges - 1) ? KEY_SPACE : keyStart + (i + 1) * rangeSize;
+                futures.add(loader.submit(() -> loadRange(from, to)));
+            }
+
+            for (Future<Int2IntOpenHashMap> future : futures) {
+                cache.putAll(future.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RocksDBException("Interrupted loading account cache");
+        } catch (ExecutionException e) {
+            throw new RocksDBException("Failed loading account cache: " + e.getCause().getMessage());
         }
 
-        return duplicateTransactions;
+        log.info("loadCache :: shard={}, count={}, time={}ms", shard, cache.size(), System.currentTimeMillis() - start);
+    }
+
+    // Stores written before the merge operator hold 4-byte big-endian balances, they are rewritten once
+    private void upgradeAccountFormat() throws RocksDBException {
+        if (db.get(AccountValue.FORMAT_KEY) != null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long count = 0;
+        int chunkSize = Math.max(1, config.getProvisionChunkSize());
+
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions);
+             WriteBatch batch = new WriteBatch();
+             WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                if (iterator.value().length != Integer.BYTES) {
+                    continue;
+                }
+
+                batch.put(accountsHandle, iterator.key(), AccountValue.encode(bytesToInt(iterator.value())));
+                count++;
+                if (batch.count() == chunkSize) {
+                    db.write(writeOptions, batch);
+                    batch.clear();
+                }
+            }
+
+            // The marker goes last, an interrupted upgrade starts over
+            batch.put(AccountValue.FORMAT_KEY, AccountValue.FORMAT);
+            db.write(writeOptions, batch);
+        }
+
+        if (count > 0) {
+            log.info("upgradeAccountFormat :: shard={}, count={}, time={}ms", shard, count, System.currentTimeMillis() - start);
+        }
+    }
+
+    private void logColumnFamilyStats(String name, ColumnFamilyHandle handle) throws RocksDBException {
+        log.info("Column family :: shard={}, cf={}, keys={}, sstBytes={}, memtableBytes={}, tableReaderBytes={}", shard, name,
+                db.getLongProperty(handle, "rocksdb.estimate-num-keys"), db.getLongProperty(handle, "rocksdb.total-sst-files-size"),
+                db.getLongProperty(handle, "rocksdb.cur-size-all-mem-tables"), db.getLongProperty(handle, "rocksdb.estimate-table-readers-mem"));
+    }
+
+    private AccountIndex loadAccountIndex() {
+        AccountIndex index = new AccountIndex();
+        long start = System.currentTimeMillis();
+
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, readOptions)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                index.add(bytesToInt(iterator.key()));
+            }
+        }
+
+        log.info("loadAccountIndex :: shard={}, count={}, time={}ms", shard, index.size(), System.currentTimeMillis() - start);
+        return index;
+    }
+
+    private void loadTxnFilter() {
+        long start = System.currentTimeMillis();
+
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(txnHandle, readOptions)) {
+            // Skip transactions before the window, they are dropped by the next expiry
+            iterator.seek(longToBytes(txnWindow.isEnabled() ? TxnWindow.toTxnId(System.currentTimeMillis() - txnWindow.getWindowMillis()) : 0));
+            for (; iterator.isValid(); iterator.next()) {
+                txnFilter.put(bytesToLong(iterator.key()));
+            }
+        }
+
+        log.info("loadTxnFilter :: shard={}, time={}ms, {}", shard, System.currentTimeMillis() - start, txnFilter.getStats());
+    }
+
+    private Int2IntOpenHashMap loadRange(long from, long to) {
+        Int2IntOpenHashMap accountMap = new Int2IntOpenHashMap();
+
+        try (Slice upperBound = (to < KEY_SPACE) ? new Slice(intToBytes((int) to)) : null;
+             ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(accountsHandle, upperBound != null ? readOptions.setIterateUpperBound(upperBound) : readOptions)) {
+            for (iterator.seek(intToBytes((int) from)); iterator.isValid(); iterator.next()) {
+                accountMap.put(bytesToInt(iterator.key()), AccountValue.decode(iterator.value()));
+            }
+        }
+
+        return accountMap;
+    }
+
+    // Reports stall transitions as they happen, the callback must not call back into the db
+    private class StallListener extends AbstractEventListener {
+        private StallListener() {
+            super(EnabledEventCallback.ON_STALL_CONDITIONS_CHANGED);
+        }
+
+        @Override
+        public void onStallConditionsChanged(WriteStallInfo info) {
+            stallConditions.put(info.getColumnFamilyName(), info.getCurrentCondition());
+            refreshPressure();
+
+            if (info.getCurrentCondition() == WriteStallCondition.NORMAL) {
+                log.info("Write stall cleared :: shard={}, cf={}, previous={}", shard, info.getColumnFamilyName(), info.getPreviousCondition());
+            } else {
+                log.warn("Write stall :: shard={}, cf={}, condition={}", shard, info.getColumnFamilyName(), info.getCurrentCondition());
+            }
+        }
+    }
+
+    // Where the column family options slow down writes
+    private record StallLimits(long pendingBytes, int level0Files, int immutableMemtables) {
+        private StallLimits(ColumnFamilyOptions options) {
+            this(Math.max(1, options.softPendingCompactionBytesLimit()), Math.max(1, options.level0SlowdownWritesTrigger()),
+                    Math.max(1, options.maxWriteBufferNumber() - 1));
+        }
+    }
+
+    public record MigrationDelta(int[] accountIds, int[] balances, long[] txnIds) { }
+
+    @FunctionalInterface
+    public interface AccountChunkConsumer {
+        void accept(int[] accountIds, int[] balances, int count) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface TxnChunkConsumer {
+        void accept(long[] txnIds, int count) throws Exception;
+    }
+
+    // Either a balance sub-batch or an action that must run on the writer thread
+    private record ShardTask(List<BalanceUpdateRequest> requests, CompletableFuture<BalanceUpdateResponseBatch> future, Runnable action) { }
+
+    // Applied group on its way through the commit stage, a null context stops the committer
+    private static class CommitGroup {
+        private final SpeedbBatchContext ctx;
+        private final List<ShardTask> tasks;
+        private final List<BalanceUpdateResponseBatch> responses;
+        private final long epoch;
+        private boolean failed;
+
+        private CommitGroup(SpeedbBatchContext ctx, List<ShardTask> tasks, List<BalanceUpdateResponseBatch> responses, long epoch) {
+            this.ctx = ctx;
+            this.tasks = tasks;
+            this.responses = responses;
+            this.epoch = epoch;
+        }
     }
 }
@@ -0,0 +1,61 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.Cache;
+import org.rocksdb.LRUCache;
+import org.rocksdb.RocksDB;
+import org.rocksdb.WriteBufferManager;
+
+/**
+ * Process-wide native memory budget shared by all shards and column families. Memtables are charged to the
+ * block cache through the {@link WriteBufferManager}, so blocks and memtables together stay within the budget.
+ */
+@Slf4j
+@Getter
+public class SpeedbMemory implements AutoCloseable {
+
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_WRITE_BUFFER_SIZE = 4 * MB;
+    private static final long MAX_WRITE_BUFFER_SIZE = 512 * MB;
+
+    // Column families taking writes: accounts and txns
+    private static final int WRITE_COLUMN_FAMILIES = 2;
+    public static final int MAX_WRITE_BUFFER_NUMBER = 4;
+
+    private final long budget;
+    private final long writeBufferBudget;
+    private final long writeBufferSize;
+    private final Cache cache;
+    private final WriteBufferManager writeBufferManager;
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    public SpeedbMemory(GrpcServerConfig config) {
+        this.budget = Math.max(64, config.getMemoryBudgetMb()) * MB;
+        this.writeBufferBudget = (long) (budget * Math.clamp(config.getMemoryWriteBufferRatio(), 0.1, 0.9));
+
+        // Spread the memtable share over every column family of every shard
+        long perBuffer = writeBufferBudget / ((long) Math.max(1, config.getShards()) * WRITE_COLUMN_FAMILIES * MAX_WRITE_BUFFER_NUMBER);
+        this.writeBufferSize = Math.clamp(perBuffer, MIN_WRITE_BUFFER_SIZE, MAX_WRITE_BUFFER_SIZE);
+
+        this.cache = new LRUCache(budget);
+        this.writeBufferManager = new WriteBufferManager(writeBufferBudget, cache);
+
+        log.info("Speedb memory :: budget={}MB, writeBufferBudget={}MB, writeBufferSize={}MB",
+                budget / MB, writeBufferBudget / MB, writeBufferSize / MB);
+    }
+
+    public String getStats() {
+        return String.format("usage=%dMB, pinned=%dMB, budget=%dMB", cache.getUsage() / MB, cache.getPinnedUsage() / MB, budget / MB);
+    }
+
+    @Override
+    public void close() {
+        writeBufferManager.close();
+        cache.close();
+    }
+}
@@ -0,0 +1,142 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.Snapshot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves buckets to added shards while traffic keeps flowing. Per source and target shard the buckets are copied from
+ * a snapshot with throttled I/O, then the changes made meanwhile are copied and the routing switches while batch
+ * submission is briefly held. Once every move is done, each shard purges the accounts it no longer owns. The target
+ * is kept in the routing table until the purge is done, so an interrupted resharding resumes on the next start.
+ */
+@Slf4j
+public class SpeedbResharder implements Runnable {
+
+    private final SpeedbAccountManager manager;
+    private final Map<Integer, SpeedbConnection> dbMap;
+    private final int targetShards;
+    private final int chunkSize;
+    private final long bytesPerSecond;
+
+    // Throttle state
+    private long throttleStart;
+    private long throttleBytes;
+
+    public SpeedbResharder(GrpcServerConfig config, SpeedbAccountManager manager, Map<Integer, SpeedbConnection> dbMap, int targetShards) {
+        this.manager = manager;
+        this.dbMap = dbMap;
+        this.targetShards = targetShards;
+        this.chunkSize = Math.max(1, config.getProvisionChunkSize());
+        this.bytesPerSecond = config.getReshardRateMb() << 20;
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        List<SpeedbRouting.Move> plan = manager.getRouting().plan(targetShards);
+        log.info("Resharding :: shards={}, moves={}, resumed={}", targetShards, plan.size(), manager.getRouting().getTargetShards() > 0);
+
+        try {
+            updateTarget(targetShards);
+            throttleStart = System.nanoTime();
+            for (SpeedbRouting.Move move : plan) {
+                migrate(move);
+            }
+
+            // Copies of moved accounts are left behind on the sources
+            for (Map.Entry<Integer, SpeedbConnection> entry : dbMap.entrySet()) {
+                long purged = entry.getValue().purge(manager.getRouting(), chunkSize, this::throttle);
+                log.info("Purged moved accounts :: shard={}, purged={}", entry.getKey(), purged);
+            }
+            updateTarget(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Resharding interrupted, continues on the next start");
+            return;
+        } catch (Exception e) {
+            log.error("Resharding failed, continues on the next start", e);
+            return;
+        }
+
+        log.info("Resharding done :: shards={}, time={}ms", targetShards, System.currentTimeMillis() - start);
+    }
+
+    private void migrate(SpeedbRouting.Move move) throws Exception {
+        SpeedbConnection source = dbMap.get(move.source());
+        SpeedbConnection target = dbMap.get(move.target());
+        long start = System.currentTimeMillis();
+        long[] copied = new long[2];
+
+        // Bulk copy from a snapshot, the source keeps serving the buckets
+        Snapshot snapshot = source.startMigration(manager.getRouting(), move.buckets()).join();
+        try {
+            source.exportAccounts(snapshot, manager.getRouting(), move.buckets(), chunkSize, (accountIds, balances, count) -> {
+                target.importAccounts(accountIds, balances, count).join();
+                copied[0] += count;
+                throttle((long) count * Integer.BYTES * 2);
+            });
+            source.exportTxns(snapshot, chunkSize, (txnIds, count) -> {
+                target.importTxns(txnIds, count).join();
+                copied[1] += count;
+                throttle((long) count * Long.BYTES);
+            });
+        } catch (Exception e) {
+            // Stop tracking changes, the buckets stay on the source
+            source.finishMigration().join();
+            throw e;
+        } finally {
+            source.releaseSnapshot(snapshot);
+        }
+
+        // Cut over, no batch is submitted until the buckets are routed to the target
+        SpeedbConnection.MigrationDelta delta;
+        manager.getRoutingLock().writeLock().lock();
+        try {
+            delta = source.finishMigration().join();
+            target.importDelta(delta).join();
+
+            SpeedbRouting routing = manager.getRouting().move(move.buckets(), move.target());
+            routing.save(SpeedbRouting.PATH);
+            manager.setRouting(routing);
+        } finally {
+            manager.getRoutingLock().writeLock().unlock();
+        }
+
+        log.info("Moved buckets :: source={}, target={}, accounts={}, txns={}, changedAccounts={}, changedTxns={}, time={}ms",
+                move.source(), move.target(), copied[0], copied[1], delta.accountIds().length, delta.txnIds().length,
+                System.currentTimeMillis() - start);
+    }
+
+    private void updateTarget(int shards) throws Exception {
+        manager.getRoutingLock().writeLock().lock();
+        try {
+            SpeedbRouting routing = manager.getRouting().withTargetShards(shards);
+            routing.save(SpeedbRouting.PATH);
+            manager.setRouting(routing);
+        } finally {
+            manager.getRoutingLock().writeLock().unlock();
+        }
+    }
+
+    // Sleeps whenever the copied bytes get ahead of the configured rate
+    private void throttle(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        throttleBytes += bytes;
+        long aheadNanos = (long) (throttleBytes * 1e9 / bytesPerSecond) - (System.nanoTime() - throttleStart);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
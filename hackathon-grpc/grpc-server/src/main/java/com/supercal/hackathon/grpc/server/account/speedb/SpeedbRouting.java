@@ -0,0 +1,166 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps accounts to shards through a fixed number of buckets, {@code accountId % buckets}. Immutable, resharding
+ * publishes a new table whenever a group of buckets switched shards. Persisted next to the shard directories together
+ * with the shard count of an unfinished resharding, so a restart resumes its moves and purge.
+ */
+public class SpeedbRouting {
+
+    public static final Path PATH = Path.of("speedb-routing.dat");
+    private static final int MAGIC = 0x52544231;
+    private static final int MAGIC_TARGET = 0x52544232;
+
+    private final int[] owners;
+    private final int shards;
+    private final int targetShards;
+
+    private SpeedbRouting(int[] owners, int targetShards) {
+        this.owners = owners;
+        this.shards = Arrays.stream(owners).max().orElse(0) + 1;
+        this.targetShards = targetShards;
+    }
+
+    // Buckets are rounded up to a multiple of the shards, so bucket % shards places accounts like accountId % shards
+    public static SpeedbRouting initial(int buckets, int shards) {
+        int[] owners = new int[(Math.max(buckets, shards) + shards - 1) / shards * shards];
+        for (int bucket = 0; bucket < owners.length; bucket++) {
+            owners[bucket] = bucket % shards;
+        }
+
+        return new SpeedbRouting(owners, 0);
+    }
+
+    public int bucket(int accountId) {
+        return Integer.remainderUnsigned(accountId, owners.length);
+    }
+
+    public int shard(int accountId) {
+        return owners[bucket(accountId)];
+    }
+
+    public int getBuckets() {
+        return owners.length;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    // Shard count of the resharding in progress, 0 when there is none
+    public int getTargetShards() {
+        return targetShards;
+    }
+
+    public SpeedbRouting withTargetShards(int targetShards) {
+        return new SpeedbRouting(owners, targetShards);
+    }
+
+    public SpeedbRouting move(boolean[] buckets, int target) {
+        int[] moved = owners.clone();
+        for (int bucket = 0; bucket < moved.length; bucket++) {
+            if (buckets[bucket]) {
+                moved[bucket] = target;
+            }
+        }
+
+        return new SpeedbRouting(moved, targetShards);
+    }
+
+    // Fewest bucket moves that spread the buckets evenly over the shards, grouped by source and target shard
+    public List<Move> plan(int targetShards) {
+        int[] counts = new int[targetShards];
+        for (int owner : owners) {
+            counts[owner]++;
+        }
+
+        int[] wanted = new int[targetShards];
+        for (int shard = 0; shard < targetShards; shard++) {
+            wanted[shard] = owners.length / targetShards + (shard < owners.length % targetShards ? 1 : 0);
+        }
+
+        boolean[][][] moves = new boolean[targetShards][targetShards][];
+        int target = 0;
+        for (int bucket = owners.length - 1; bucket >= 0; bucket--) {
+            int source = owners[bucket];
+            if (counts[source] <= wanted[source]) {
+                continue;
+            }
+
+            while (counts[target] >= wanted[target]) {
+                target++;
+            }
+
+            if (moves[source][target] == null) {
+                moves[source][target] = new boolean[owners.length];
+            }
+            moves[source][target][bucket] = true;
+            counts[source]--;
+            counts[target]++;
+        }
+
+        List<Move> plan = new ArrayList<>();
+        for (int source = 0; source < targetShards; source++) {
+            for (int to = 0; to < targetShards; to++) {
+                if (moves[source][to] != null) {
+                    plan.add(new Move(source, to, moves[source][to]));
+                }
+            }
+        }
+
+        return plan;
+    }
+
+    // Returns null when there is no routing table yet
+    public static SpeedbRouting load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            // Tables written before resharding was resumable have no target
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_TARGET) {
+                throw new IOException("Not a routing table: " + path);
+            }
+
+            int[] owners = new int[in.readInt()];
+            for (int bucket = 0; bucket < owners.length; bucket++) {
+                owners[bucket] = in.readInt();
+            }
+
+            return new SpeedbRouting(owners, magic == MAGIC_TARGET ? in.readInt() : 0);
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeInt(MAGIC_TARGET);
+            out.writeInt(owners.length);
+            for (int owner : owners) {
+                out.writeInt(owner);
+            }
+            out.writeInt(targetShards);
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public record Move(int source, int target, boolean[] buckets) { }
+}
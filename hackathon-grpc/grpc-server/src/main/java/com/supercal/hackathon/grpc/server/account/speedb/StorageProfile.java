@@ -0,0 +1,117 @@
+package com.supercal.hackathon.grpc.server.account.speedb;
+
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DataBlockIndexType;
+import org.rocksdb.HashSpdbMemTableConfig;
+import org.rocksdb.IndexType;
+
+/**
+ * Named column family settings, one set for the small and hot accounts and one for the append-mostly,
+ * time-ordered txns. Selected with {@code speedb.profile}, per column family with {@code speedb.profile.accounts}
+ * and {@code speedb.profile.txns}.
+ */
+public enum StorageProfile {
+    // Point lookups first: small blocks, hash memtable with hashed data blocks, memtable blooms
+    LATENCY("latency",
+            new Settings(CompactionStyle.LEVEL, CompressionType.NO_COMPRESSION, true, 4 * 1024, 10, 0.1, false),
+            new Settings(CompactionStyle.LEVEL, CompressionType.NO_COMPRESSION, false, 16 * 1024, 10, 0.1, false)),
+    // Write volume first: large blocks, txns compact universally for less write amplification
+    THROUGHPUT("throughput",
+            new Settings(CompactionStyle.LEVEL, CompressionType.NO_COMPRESSION, false, 32 * 1024, 10, 0, false),
+            new Settings(CompactionStyle.UNIVERSAL, CompressionType.NO_COMPRESSION, false, 32 * 1024, 10, 0, false)),
+    // Smallest footprint: compressed blocks, partitioned index and filters so only the top level stays cached
+    MEMORY_LEAN("memory-lean",
+            new Settings(CompactionStyle.LEVEL, CompressionType.LZ4_COMPRESSION, false, 16 * 1024, 10, 0, true),
+            new Settings(CompactionStyle.LEVEL, CompressionType.LZ4_COMPRESSION, false, 64 * 1024, 6, 0, true));
+
+    private final String name;
+    private final Settings accounts;
+    private final Settings txns;
+
+    StorageProfile(String name, Settings accounts, Settings txns) {
+        this.name = name;
+        this.accounts = accounts;
+        this.txns = txns;
+    }
+
+    public ColumnFamilyOptions accountOptions(SpeedbMemory memory) {
+        return accounts.toOptions(memory);
+    }
+
+    public ColumnFamilyOptions txnOptions(SpeedbMemory memory) {
+        return txns.toOptions(memory);
+    }
+
+    public Settings getAccounts() {
+        return accounts;
+    }
+
+    public Settings getTxns() {
+        return txns;
+    }
+
+    public static StorageProfile fromName(String name) {
+        for (StorageProfile profile : values()) {
+            if (profile.name.equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported speedb.profile=" + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public record Settings(CompactionStyle compaction, CompressionType compression, boolean pointLookups, int blockSize,
+                           int bloomBitsPerKey, double memtableBloomRatio, boolean partitioned) {
+
+        // Block cache and memtables are charged to the shared budget
+        private ColumnFamilyOptions toOptions(SpeedbMemory memory) {
+            BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                    .setBlockCache(memory.getCache())
+                    .setCacheIndexAndFilterBlocks(true)
+                    .setCacheIndexAndFilterBlocksWithHighPriority(true)
+                    .setPinL0FilterAndIndexBlocksInCache(true)
+                    .setBlockSize(blockSize)
+                    .setFilterPolicy(new BloomFilter(bloomBitsPerKey, false));
+
+            if (pointLookups) {
+                tableConfig.setDataBlockIndexType(DataBlockIndexType.kDataBlockBinaryAndHash);
+            }
+
+            if (partitioned) {
+                tableConfig.setIndexType(IndexType.kTwoLevelIndexSearch)
+                        .setPartitionFilters(true)
+                        .setPinTopLevelIndexAndFilter(true);
+            }
+
+            ColumnFamilyOptions options = new ColumnFamilyOptions()
+                    .setWriteBufferSize(memory.getWriteBufferSize())
+                    .setMaxWriteBufferNumber(SpeedbMemory.MAX_WRITE_BUFFER_NUMBER)
+                    .setTargetFileSizeBase(512 * 1024 * 1024)
+                    .setMaxBytesForLevelBase(1024 * 1024 * 1024)
+                    .setMinWriteBufferNumberToMerge(2)
+                    .setCompressionType(compression)
+                    .setCompactionStyle(compaction)
+                    .setTableFormatConfig(tableConfig)
+                    .setLevelCompactionDynamicLevelBytes(compaction == CompactionStyle.LEVEL);
+
+            if (pointLookups) {
+                options.setMemTableConfig(new HashSpdbMemTableConfig());
+            }
+
+            if (memtableBloomRatio > 0) {
+                options.setMemtablePrefixBloomSizeRatio(memtableBloomRatio).setMemtableWholeKeyFiltering(true);
+            }
+
+            return options;
+        }
+    }
+}
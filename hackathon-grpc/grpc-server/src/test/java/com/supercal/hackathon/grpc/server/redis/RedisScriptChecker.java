@@ -0,0 +1,145 @@
+package com.supercal.hackathon.grpc.server.redis;
+
+import com.supercal.hackathon.grpc.proto.Action;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequest;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateRequestBatch;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateResponse;
+import com.supercal.hackathon.grpc.proto.BalanceUpdateResponseBatch;
+import com.supercal.hackathon.grpc.proto.OperationStatus;
+import com.supercal.hackathon.grpc.server.GrpcServerConfig;
+import com.supercal.hackathon.grpc.server.account.TxnWindow;
+import com.supercal.hackathon.grpc.server.account.redis.RedisAccountManager;
+import io.grpc.stub.StreamObserver;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_ACCOUNT_NOT_FOUND;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_DUPLICATE_TRANSACTION;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INSUFFICIENT_FUNDS;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_INVALID_AMOUNT;
+import static com.supercal.hackathon.grpc.proto.OperationStatus.OPERATION_STATUS_SUCCESS;
+
+/**
+ * Runs the batch script of {@link RedisAccountManager} against a local Redis and checks every outcome: credit and
+ * debit, duplicates, insufficient funds, unknown accounts, invalid amounts, credits past int32 and reloading the
+ * script after {@code SCRIPT FLUSH}. Replaces the accounts of the target server.
+ * Usage: RedisScriptChecker [host] [port]
+ */
+public class RedisScriptChecker {
+
+    private static final int ACCOUNTS = 100;
+    private static final int BALANCE = 100;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6379;
+
+        Properties properties = new Properties();
+        properties.setProperty("redis.host", host);
+        properties.setProperty("redis.port", String.valueOf(port));
+        properties.setProperty("redis.connections", "4");
+        properties.setProperty("redis.slots", "4");
+        properties.setProperty("redis.script.batch.size", "2");
+        RedisAccountManager accountManager = new RedisAccountManager(new GrpcServerConfig(properties));
+        accountManager.deleteAllAccounts();
+        accountManager.createAccounts(ACCOUNTS, BALANCE);
+
+        // Fresh transaction ids, dedupe keys of earlier runs stay until their ttl
+        long txnId = TxnWindow.toTxnId(System.currentTimeMillis());
+
+        // Requests of several slots and script calls come back in request order
+        List<BalanceUpdateResponse> responses = run(accountManager,
+                request(txnId + 1, 1, 10, Action.ACTION_CREDIT),
+                request(txnId + 2, 2, 30, Action.ACTION_DEBIT),
+                request(txnId + 3, 3, 500, Action.ACTION_DEBIT),
+                request(txnId + 4, ACCOUNTS + 1, 5, Action.ACTION_CREDIT),
+                request(txnId + 5, 5, 0, Action.ACTION_CREDIT),
+                request(txnId + 6, 6, Integer.MAX_VALUE, Action.ACTION_CREDIT),
+                request(txnId + 1, 1, 10, Action.ACTION_CREDIT));
+        check("credit", responses.get(0), OPERATION_STATUS_SUCCESS, BALANCE + 10);
+        check("debit", responses.get(1), OPERATION_STATUS_SUCCESS, BALANCE - 30);
+        check("insufficient funds", responses.get(2), OPERATION_STATUS_INSUFFICIENT_FUNDS, BALANCE);
+        check("account not found", responses.get(3), OPERATION_STATUS_ACCOUNT_NOT_FOUND, 0);
+        check("invalid amount", responses.get(4), OPERATION_STATUS_INVALID_AMOUNT, BALANCE);
+        check("credit overflow", responses.get(5), OPERATION_STATUS_INVALID_AMOUNT, BALANCE);
+        check("duplicate in batch", responses.get(6), OPERATION_STATUS_DUPLICATE_TRANSACTION, 0);
+
+        // Applied transactions stay deduped, rejected ones may be retried
+        responses = run(accountManager,
+                request(txnId + 2, 2, 30, Action.ACTION_DEBIT),
+                request(txnId + 3, 3, 50, Action.ACTION_DEBIT));
+        check("duplicate in later batch", responses.get(0), OPERATION_STATUS_DUPLICATE_TRANSACTION, 0);
+        check("rejected transaction retried", responses.get(1), OPERATION_STATUS_SUCCESS, BALANCE - 50);
+
+        // A flushed script cache is reloaded and the call repeated
+        try (Jedis jedis = new Jedis(host, port)) {
+            jedis.scriptFlush();
+        }
+        responses = run(accountManager, request(txnId + 7, 7, 1, Action.ACTION_CREDIT));
+        check("NOSCRIPT reload", responses.get(0), OPERATION_STATUS_SUCCESS, BALANCE + 1);
+
+        // Stored balances match the responses
+        check("stored balances", accountManager.getAccounts().get(1) == BALANCE + 10 && accountManager.getAccounts().get(6) == BALANCE);
+
+        accountManager.deleteAllAccounts();
+        accountManager.shutdown();
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static List<BalanceUpdateResponse> run(RedisAccountManager accountManager, BalanceUpdateRequest... requests) {
+        BalanceUpdateRequestBatch.Builder batch = BalanceUpdateRequestBatch.newBuilder().setBatchId(1);
+        for (BalanceUpdateRequest request : requests) {
+            batch.addRequest(request);
+        }
+
+        List<BalanceUpdateResponse> responses = new ArrayList<>();
+        accountManager.changeBalance(batch.build(), new StreamObserver<>() {
+            @Override
+            public void onNext(BalanceUpdateResponseBatch response) {
+                if (response.getBatchError()) {
+                    throw new IllegalStateException("Batch failed");
+                }
+                responses.addAll(response.getResponseList());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        return responses;
+    }
+
+    private static BalanceUpdateRequest request(long txnId, int accountId, int amount, Action action) {
+        return BalanceUpdateRequest.newBuilder()
+                .setTransactionId(txnId)
+                .setAccountId(accountId)
+                .setAmount(amount)
+                .setAction(action)
+                .build();
+    }
+
+    private static void check(String name, BalanceUpdateResponse response, OperationStatus status, int balance) {
+        check(name + " :: status=" + response.getStatus() + ", balance=" + response.getBalance(),
+                response.getStatus() == status && response.getBalance() == balance);
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "OK   " : "FAIL ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
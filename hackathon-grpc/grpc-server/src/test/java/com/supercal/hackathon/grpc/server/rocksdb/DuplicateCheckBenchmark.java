@@ -0,0 +1,97 @@
+package com.supercal.hackathon.grpc.server.rocksdb;
+
+import com.supercal.hackathon.grpc.server.account.TxnBloomFilter;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.supercal.hackathon.grpc.server.account.AccountManagerUtil.longToBytes;
+
+/**
+ * Compares duplicate transaction lookup cost of a plain multiGet against the Bloom filter guarded multiGet.
+ * Usage: DuplicateCheckBenchmark [stored] [lookups] [batchSize]
+ */
+public class DuplicateCheckBenchmark {
+
+    private static final String DB_PATH = "db-dedupe-bench";
+
+    public static void main(String[] args) throws RocksDBException {
+        int stored = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        // TSID like ids: millis in the high bits, counter in the low bits
+        long base = System.currentTimeMillis() << 22;
+        TxnBloomFilter filter = new TxnBloomFilter(stored, 10);
+
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, DB_PATH)) {
+            // Store committed transactions
+            try (WriteOptions writeOptions = new WriteOptions().setDisableWAL(true)) {
+                for (int i = 0; i < stored; i += batchSize) {
+                    try (WriteBatch writeBatch = new WriteBatch()) {
+                        for (int j = i; j < Math.min(i + batchSize, stored); j++) {
+                            writeBatch.put(longToBytes(base + j), new byte[]{1});
+                            filter.put(base + j);
+                        }
+                        db.write(writeOptions, writeBatch);
+                    }
+                }
+            }
+            db.compactRange();
+            System.out.printf("Stored %d transactions, filter %s%n", stored, filter.getStats());
+
+            // Lookups are new transactions, the common case
+            long newBase = base + stored;
+            for (int round = 0; round < 3; round++) {
+                long multiGetNanos = runMultiGet(db, newBase, lookups, batchSize, null);
+                long filterNanos = runMultiGet(db, newBase, lookups, batchSize, filter);
+
+                System.out.printf("round=%d multiGet=%.1f ns/lookup filter+multiGet=%.1f ns/lookup%n",
+                        round, (double) multiGetNanos / lookups, (double) filterNanos / lookups);
+            }
+
+            System.out.printf("Filter after lookups %s%n", filter.getStats());
+        } finally {
+            deleteDirectory(new File(DB_PATH));
+        }
+    }
+
+    private static long runMultiGet(RocksDB db, long base, int lookups, int batchSize, TxnBloomFilter filter) throws RocksDBException {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < lookups; i += batchSize) {
+            List<byte[]> keys = new ArrayList<>(batchSize);
+            for (long txnId = base + i; txnId < base + Math.min(i + batchSize, lookups); txnId++) {
+                if (filter == null || filter.mightContain(txnId)) {
+                    keys.add(longToBytes(txnId));
+                }
+            }
+
+            if (!keys.isEmpty()) {
+                int found = (int) db.multiGetAsList(keys).stream().filter(v -> v != null).count();
+                if (filter != null) {
+                    filter.recordFalsePositives(keys.size() - found);
+                }
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}